@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per PLMN hit counts of the LTE bands opportunistic networks were found on.
+ *
+ * Lets a scan first sweep only the bands a requested network was seen on before, instead of
+ * the whole band set of the request. The number of PLMNs is bounded, the least recently used
+ * PLMN is forgotten first. Not thread safe, callers synchronize.
+ */
+public class ONSBandHistory {
+    public static final int DEFAULT_MAX_PLMNS = 64;
+
+    private final int mMaxPlmns;
+    /* band to hit count, per PLMN */
+    private final LinkedHashMap<String, SparseIntArray> mHits;
+
+    public ONSBandHistory() {
+        this(DEFAULT_MAX_PLMNS);
+    }
+
+    public ONSBandHistory(int maxPlmns) {
+        mMaxPlmns = maxPlmns;
+        mHits = new LinkedHashMap<String, SparseIntArray>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SparseIntArray> eldest) {
+                return size() > mMaxPlmns;
+            }
+        };
+    }
+
+    /**
+     * record that mccMnc was found on band.
+     */
+    public void recordHit(String mccMnc, int band) {
+        SparseIntArray bands = mHits.get(mccMnc);
+        if (bands == null) {
+            bands = new SparseIntArray();
+            mHits.put(mccMnc, bands);
+        }
+        bands.put(band, bands.get(band) + 1);
+    }
+
+    public int getHitCount(String mccMnc, int band) {
+        SparseIntArray bands = mHits.get(mccMnc);
+        return bands == null ? 0 : bands.get(band);
+    }
+
+    /**
+     * @return the bands of plan any of mccMncs was found on before, in ascending order
+     */
+    public int[] getKnownBands(List<String> mccMncs, ONSSelectionPlan plan) {
+        int[] planBands = plan.getBands();
+        int count = 0;
+        for (int band : planBands) {
+            for (int i = 0; i < mccMncs.size(); i++) {
+                if (getHitCount(mccMncs.get(i), band) > 0) {
+                    planBands[count++] = band;
+                    break;
+                }
+            }
+        }
+        int[] bands = new int[count];
+        System.arraycopy(planBands, 0, bands, 0, count);
+        return bands;
+    }
+
+    /**
+     * dump band history
+     */
+    public void dump(PrintWriter pw) {
+        pw.println(" bandHistory plmns=" + mHits.size() + "/" + mMaxPlmns);
+        for (Map.Entry<String, SparseIntArray> entry : mHits.entrySet()) {
+            pw.println("  " + entry.getKey() + " " + entry.getValue());
+        }
+    }
+}
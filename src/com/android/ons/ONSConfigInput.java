@@ -17,7 +17,9 @@
 package com.android.ons;
 
 import android.telephony.AvailableNetworkInfo;
+import android.telephony.Rlog;
 import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
 
 import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
 
@@ -32,6 +34,15 @@ import java.util.List;
 public class ONSConfigInput {
     private static final String TAG = "ONSConfigInput";
     private static final boolean DBG = true;
+
+    /* compact persistent form: version;primarySub;preferredDataSub;network|network... where
+       each network is subId,priority,mccMnc:mccMnc,band:band */
+    private static final String PERSIST_VERSION = "1";
+    private static final String RECORD_SEPARATOR = ";";
+    private static final String NETWORK_SEPARATOR = "|";
+    private static final String FIELD_SEPARATOR = ",";
+    private static final String LIST_SEPARATOR = ":";
+
     private ArrayList<AvailableNetworkInfo> mAvailableNetworkInfos;
     private int mPreferredDataSub;
     private int mPrimarySub;
@@ -73,6 +84,78 @@ public class ONSConfigInput {
         return mAvailableNetworkInfos;
     }
 
+    /**
+     * Encode the request into a compact string suitable for persistent storage.
+     * The callback is not persisted since it does not survive process death.
+     */
+    public String toPersistentString() {
+        ArrayList<String> networks = new ArrayList<String>();
+        if (mAvailableNetworkInfos != null) {
+            for (AvailableNetworkInfo availableNetworkInfo : mAvailableNetworkInfos) {
+                networks.add(availableNetworkInfo.getSubId()
+                        + FIELD_SEPARATOR + availableNetworkInfo.getPriority()
+                        + FIELD_SEPARATOR
+                        + TextUtils.join(LIST_SEPARATOR, availableNetworkInfo.getMccMncs())
+                        + FIELD_SEPARATOR
+                        + TextUtils.join(LIST_SEPARATOR, availableNetworkInfo.getBands()));
+            }
+        }
+        return PERSIST_VERSION
+                + RECORD_SEPARATOR + mPrimarySub
+                + RECORD_SEPARATOR + mPreferredDataSub
+                + RECORD_SEPARATOR + TextUtils.join(NETWORK_SEPARATOR, networks);
+    }
+
+    /**
+     * Decode a request previously encoded with {@link #toPersistentString()}.
+     * @return restored request without callback, or null if the input is absent or malformed.
+     */
+    public static ONSConfigInput fromPersistentString(String persistentString) {
+        if (TextUtils.isEmpty(persistentString)) {
+            return null;
+        }
+        String[] records = persistentString.split(RECORD_SEPARATOR, -1);
+        if (records.length != 4 || !PERSIST_VERSION.equals(records[0])) {
+            log("unsupported persisted input " + persistentString);
+            return null;
+        }
+        try {
+            ArrayList<AvailableNetworkInfo> availableNetworkInfos =
+                    new ArrayList<AvailableNetworkInfo>();
+            for (String network : TextUtils.split(records[3], "\\" + NETWORK_SEPARATOR)) {
+                String[] fields = network.split(FIELD_SEPARATOR, -1);
+                if (fields.length != 4) {
+                    log("malformed persisted network " + network);
+                    return null;
+                }
+                ArrayList<String> mccMncs = new ArrayList<String>();
+                for (String mccMnc : TextUtils.split(fields[2], LIST_SEPARATOR)) {
+                    mccMncs.add(mccMnc);
+                }
+                ArrayList<Integer> bands = new ArrayList<Integer>();
+                for (String band : TextUtils.split(fields[3], LIST_SEPARATOR)) {
+                    bands.add(Integer.parseInt(band));
+                }
+                availableNetworkInfos.add(new AvailableNetworkInfo(Integer.parseInt(fields[0]),
+                        Integer.parseInt(fields[1]), mccMncs, bands));
+            }
+            if (availableNetworkInfos.size() == 0) {
+                return null;
+            }
+            ONSConfigInput onsConfigInput = new ONSConfigInput(availableNetworkInfos, null);
+            onsConfigInput.setPrimarySub(Integer.parseInt(records[1]));
+            onsConfigInput.setPreferredDataSub(Integer.parseInt(records[2]));
+            return onsConfigInput;
+        } catch (NumberFormatException e) {
+            log("malformed persisted input " + e);
+            return null;
+        }
+    }
+
+    private static void log(String msg) {
+        Rlog.d(TAG, msg);
+    }
+
     @Override
     public String toString() {
         return ("ONSConfigInput:"
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * On-disk store of {@link ONSCoverageMap} outcomes.
+ *
+ * The file is a 16 byte header followed by fixed size records, one per cell and PLMN, and is
+ * memory mapped at its full capacity. Opening it only maps the file, records are read when
+ * {@link #load} is called off the boot critical path. An outcome update overwrites its record
+ * in place or appends a new one, so the cost of persisting is a few stores into the mapping
+ * and the kernel writes the dirty pages back. When the file fills up it is compacted on the
+ * background executor into a new file holding only records that still carry weight. Updates
+ * are not blocked while the new file is written, they are applied again once it is mapped.
+ */
+public class ONSCoverageDatabase implements ONSCoverageMap.Listener {
+    private static final String LOG_TAG = "ONSCoverageDatabase";
+    private static final boolean DBG = true;
+
+    public static final String FILE_NAME = "ons_coverage.db";
+    public static final int DEFAULT_MAX_RECORDS = 8192;
+
+    private static final int MAGIC = 0x4f4e5343;
+    private static final int VERSION = 1;
+    @VisibleForTesting
+    protected static final int HEADER_SIZE = 16;
+    @VisibleForTesting
+    protected static final int RECORD_SIZE = 32;
+    private static final int HEADER_MAGIC_OFFSET = 0;
+    private static final int HEADER_VERSION_OFFSET = 4;
+    private static final int HEADER_COUNT_OFFSET = 8;
+    private static final int RECORD_CELL_OFFSET = 0;
+    private static final int RECORD_PLMN_OFFSET = 8;
+    private static final int RECORD_HITS_OFFSET = 12;
+    private static final int RECORD_MISSES_OFFSET = 16;
+    private static final int RECORD_TIME_OFFSET = 24;
+    /* records with less decayed weight than this are dropped on compaction */
+    private static final double MIN_LIVE_WEIGHT = 0.05;
+    /* PLMNs with 3 digit MNCs are offset by this in the record */
+    private static final int THREE_DIGIT_MNC_FLAG = 1000000;
+
+    private final Object mLock = new Object();
+    private final File mFile;
+    private final int mMaxRecords;
+    private final Executor mBackgroundExecutor;
+    /* record index by cell and PLMN */
+    private final HashMap<RecordKey, Integer> mIndex = new HashMap<>();
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private int mRecordCount;
+    private boolean mIsLoaded;
+    private boolean mIsCompactionPending;
+    /* the compacted file is being written, updates are also kept in mPendingUpdates */
+    private boolean mIsCompacting;
+    private final HashMap<RecordKey, Record> mPendingUpdates = new HashMap<>();
+    private ONSScheduler mScheduler = ONSScheduler.getDefault();
+    private int mCompactionCount;
+    private int mDroppedUpdateCount;
+
+    private static class RecordKey {
+        final long mCellHash;
+        final int mPlmn;
+
+        RecordKey(long cellHash, int plmn) {
+            mCellHash = cellHash;
+            mPlmn = plmn;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RecordKey)) {
+                return false;
+            }
+            RecordKey other = (RecordKey) o;
+            return mCellHash == other.mCellHash && mPlmn == other.mPlmn;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCellHash, mPlmn);
+        }
+    }
+
+    /* decoded record, used while compacting and for updates made during compaction */
+    private static class Record {
+        long mCellHash;
+        int mPlmn;
+        float mHits;
+        float mMisses;
+        long mUpdateTime;
+    }
+
+    private ONSCoverageDatabase(File file, int maxRecords, Executor backgroundExecutor) {
+        mFile = file;
+        mMaxRecords = maxRecords;
+        mBackgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * open the database, creating it if needed. Only maps the file, constant time.
+     * @return the database or null if the file could not be mapped
+     */
+    public static ONSCoverageDatabase open(File file, Executor backgroundExecutor) {
+        return open(file, DEFAULT_MAX_RECORDS, backgroundExecutor);
+    }
+
+    @VisibleForTesting
+    protected static ONSCoverageDatabase open(File file, int maxRecords,
+            Executor backgroundExecutor) {
+        ONSCoverageDatabase database = new ONSCoverageDatabase(file, maxRecords,
+                backgroundExecutor);
+        try {
+            synchronized (database.mLock) {
+                database.map();
+            }
+            return database;
+        } catch (IOException e) {
+            log("open failed " + e);
+            database.close();
+            return null;
+        }
+    }
+
+    /* map mFile, resetting it if it is not a database of the current version.
+       must be called with mLock held */
+    private void map() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long size = HEADER_SIZE + (long) mMaxRecords * RECORD_SIZE;
+        if (mRandomAccessFile.length() != size) {
+            mRandomAccessFile.setLength(size);
+        }
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int count = mBuffer.getInt(HEADER_COUNT_OFFSET);
+        if (mBuffer.getInt(HEADER_MAGIC_OFFSET) != MAGIC
+                || mBuffer.getInt(HEADER_VERSION_OFFSET) != VERSION
+                || count < 0 || count > mMaxRecords) {
+            logDebug("resetting " + mFile);
+            mBuffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+            mBuffer.putInt(HEADER_VERSION_OFFSET, VERSION);
+            mBuffer.putInt(HEADER_COUNT_OFFSET, 0);
+            count = 0;
+        }
+        mRecordCount = count;
+    }
+
+    /**
+     * restore all records into coverageMap and index them for in place updates.
+     */
+    public void load(ONSCoverageMap coverageMap) {
+        synchronized (mLock) {
+            mIndex.clear();
+            if (mBuffer == null) {
+                return;
+            }
+            for (int i = 0; i < mRecordCount; i++) {
+                int offset = getRecordOffset(i);
+                long cellHash = mBuffer.getLong(offset + RECORD_CELL_OFFSET);
+                int plmn = mBuffer.getInt(offset + RECORD_PLMN_OFFSET);
+                String mccMnc = decodePlmn(plmn);
+                if (mccMnc == null) {
+                    continue;
+                }
+                mIndex.put(new RecordKey(cellHash, plmn), i);
+                coverageMap.restoreOutcome(cellHash, mccMnc,
+                        mBuffer.getFloat(offset + RECORD_HITS_OFFSET),
+                        mBuffer.getFloat(offset + RECORD_MISSES_OFFSET),
+                        mBuffer.getLong(offset + RECORD_TIME_OFFSET));
+            }
+            mIsLoaded = true;
+            logDebug("loaded " + mRecordCount + " records");
+        }
+    }
+
+    @Override
+    public void onOutcomeUpdated(long cellHash, String mccMnc, double hits, double misses,
+            long updateTime) {
+        int plmn = encodePlmn(mccMnc);
+        if (plmn < 0) {
+            return;
+        }
+        synchronized (mLock) {
+            /* appending before load would shadow records not indexed yet */
+            if (mBuffer == null || !mIsLoaded) {
+                return;
+            }
+            Record record = new Record();
+            record.mCellHash = cellHash;
+            record.mPlmn = plmn;
+            record.mHits = (float) hits;
+            record.mMisses = (float) misses;
+            record.mUpdateTime = updateTime;
+            if (mIsCompacting) {
+                mPendingUpdates.put(new RecordKey(cellHash, plmn), record);
+            }
+            writeRecordLocked(record);
+        }
+    }
+
+    /* overwrite the record of the cell and PLMN or append it. must be called with mLock held */
+    private void writeRecordLocked(Record record) {
+        RecordKey key = new RecordKey(record.mCellHash, record.mPlmn);
+        Integer index = mIndex.get(key);
+        if (index == null) {
+            if (mRecordCount >= mMaxRecords) {
+                mDroppedUpdateCount++;
+                scheduleCompaction();
+                return;
+            }
+            index = mRecordCount;
+            writeRecord(mBuffer, index, record.mCellHash, record.mPlmn, record.mHits,
+                    record.mMisses, record.mUpdateTime);
+            mIndex.put(key, index);
+            mRecordCount++;
+            /* count last, a torn append leaves the record unreferenced */
+            mBuffer.putInt(HEADER_COUNT_OFFSET, mRecordCount);
+            if (mRecordCount >= mMaxRecords * 3 / 4) {
+                scheduleCompaction();
+            }
+        } else {
+            writeRecord(mBuffer, index, record.mCellHash, record.mPlmn, record.mHits,
+                    record.mMisses, record.mUpdateTime);
+        }
+    }
+
+    /* must be called with mLock held */
+    private void scheduleCompaction() {
+        if (mIsCompactionPending) {
+            return;
+        }
+        mIsCompactionPending = true;
+        ONSScheduler scheduler = mScheduler;
+        mBackgroundExecutor.execute(() -> compact(scheduler.currentTimeMillis()));
+    }
+
+    /**
+     * replace the clock compactions are timed with.
+     */
+    @VisibleForTesting
+    protected void setScheduler(ONSScheduler scheduler) {
+        synchronized (mLock) {
+            mScheduler = scheduler;
+        }
+    }
+
+    /**
+     * rewrite the file with only the records that still carry weight at now, keeping at most
+     * half of the capacity so appends can continue. The new file is written without holding
+     * mLock, only selecting the records and switching to the new file block updates.
+     */
+    @VisibleForTesting
+    protected void compact(long now) {
+        List<Record> records = new ArrayList<>();
+        synchronized (mLock) {
+            if (mBuffer == null) {
+                mIsCompactionPending = false;
+                return;
+            }
+            for (int i = 0; i < mRecordCount; i++) {
+                Record record = readRecord(i);
+                double weight = ONSCoverageMap.decay(record.mHits + record.mMisses,
+                        now - record.mUpdateTime);
+                if (weight >= MIN_LIVE_WEIGHT && decodePlmn(record.mPlmn) != null) {
+                    records.add(record);
+                }
+            }
+            mPendingUpdates.clear();
+            mIsCompacting = true;
+        }
+        int maxLive = mMaxRecords / 2;
+        if (records.size() > maxLive) {
+            /* keep the most recently updated */
+            Collections.sort(records, (a, b) -> Long.compare(b.mUpdateTime, a.mUpdateTime));
+            records = new ArrayList<>(records.subList(0, maxLive));
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        boolean isWritten = writeCompactedFile(tmpFile, records);
+
+        synchronized (mLock) {
+            mIsCompacting = false;
+            mIsCompactionPending = false;
+            if (mBuffer == null || !isWritten) {
+                /* closed meanwhile or nothing to switch to, the current file stays */
+                tmpFile.delete();
+                mPendingUpdates.clear();
+                return;
+            }
+            try {
+                unmap();
+                if (!tmpFile.renameTo(mFile)) {
+                    throw new IOException("rename failed");
+                }
+                map();
+            } catch (IOException e) {
+                log("compaction failed " + e);
+                tmpFile.delete();
+                if (mBuffer == null) {
+                    try {
+                        map();
+                    } catch (IOException e2) {
+                        log("remap failed " + e2);
+                        unmap();
+                        mPendingUpdates.clear();
+                        return;
+                    }
+                }
+            }
+
+            mIndex.clear();
+            for (int i = 0; i < mRecordCount; i++) {
+                int offset = getRecordOffset(i);
+                mIndex.put(new RecordKey(mBuffer.getLong(offset + RECORD_CELL_OFFSET),
+                        mBuffer.getInt(offset + RECORD_PLMN_OFFSET)), i);
+            }
+            /* updates made while the new file was written only reached the old one */
+            for (Record record : mPendingUpdates.values()) {
+                writeRecordLocked(record);
+            }
+            mPendingUpdates.clear();
+            mCompactionCount++;
+            logDebug("compacted to " + mRecordCount + " records");
+        }
+    }
+
+    /* write records to a new database file, without touching the current one */
+    private boolean writeCompactedFile(File file, List<Record> records) {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long size = HEADER_SIZE + (long) mMaxRecords * RECORD_SIZE;
+            out.setLength(size);
+            MappedByteBuffer buffer = out.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+            buffer.putInt(HEADER_VERSION_OFFSET, VERSION);
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                writeRecord(buffer, i, record.mCellHash, record.mPlmn, record.mHits,
+                        record.mMisses, record.mUpdateTime);
+            }
+            buffer.putInt(HEADER_COUNT_OFFSET, records.size());
+            buffer.force();
+            return true;
+        } catch (IOException e) {
+            log("compaction failed " + e);
+            file.delete();
+            return false;
+        }
+    }
+
+    private Record readRecord(int index) {
+        int offset = getRecordOffset(index);
+        Record record = new Record();
+        record.mCellHash = mBuffer.getLong(offset + RECORD_CELL_OFFSET);
+        record.mPlmn = mBuffer.getInt(offset + RECORD_PLMN_OFFSET);
+        record.mHits = mBuffer.getFloat(offset + RECORD_HITS_OFFSET);
+        record.mMisses = mBuffer.getFloat(offset + RECORD_MISSES_OFFSET);
+        record.mUpdateTime = mBuffer.getLong(offset + RECORD_TIME_OFFSET);
+        return record;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int index, long cellHash,
+            int plmn, float hits, float misses, long updateTime) {
+        int offset = getRecordOffset(index);
+        buffer.putLong(offset + RECORD_CELL_OFFSET, cellHash);
+        buffer.putInt(offset + RECORD_PLMN_OFFSET, plmn);
+        buffer.putFloat(offset + RECORD_HITS_OFFSET, hits);
+        buffer.putFloat(offset + RECORD_MISSES_OFFSET, misses);
+        buffer.putLong(offset + RECORD_TIME_OFFSET, updateTime);
+    }
+
+    private static int getRecordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * @return mccMnc packed into an int, -1 if it is not a 5 or 6 digit PLMN
+     */
+    @VisibleForTesting
+    protected static int encodePlmn(String mccMnc) {
+        if (mccMnc == null || (mccMnc.length() != 5 && mccMnc.length() != 6)) {
+            return -1;
+        }
+        for (int i = 0; i < mccMnc.length(); i++) {
+            if (!Character.isDigit(mccMnc.charAt(i))) {
+                return -1;
+            }
+        }
+        int plmn = Integer.parseInt(mccMnc);
+        return mccMnc.length() == 6 ? plmn + THREE_DIGIT_MNC_FLAG : plmn;
+    }
+
+    /**
+     * @return mccMnc packed by {@link #encodePlmn}, null if plmn is not valid
+     */
+    @VisibleForTesting
+    protected static String decodePlmn(int plmn) {
+        if (plmn < 0 || plmn >= 2 * THREE_DIGIT_MNC_FLAG) {
+            return null;
+        }
+        return plmn >= THREE_DIGIT_MNC_FLAG
+                ? String.format("%06d", plmn - THREE_DIGIT_MNC_FLAG)
+                : String.format("%05d", plmn);
+    }
+
+    /* must be called with mLock held */
+    private void unmap() {
+        mBuffer = null;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                log("close failed " + e);
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    /**
+     * release the mapping, pending writes are still written back by the kernel.
+     */
+    public void close() {
+        synchronized (mLock) {
+            unmap();
+        }
+    }
+
+    /**
+     * @return number of records in the file, including ones to be dropped on compaction
+     */
+    public int getRecordCount() {
+        synchronized (mLock) {
+            return mRecordCount;
+        }
+    }
+
+    public int getCompactionCount() {
+        synchronized (mLock) {
+            return mCompactionCount;
+        }
+    }
+
+    /**
+     * dump coverage database summary
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(" coverageDatabase records=" + mRecordCount + "/" + mMaxRecords
+                    + " loaded=" + mIsLoaded + " compactions=" + mCompactionCount
+                    + " droppedUpdates=" + mDroppedUpdateCount);
+        }
+    }
+
+    private static void log(String msg) {
+        Rlog.d(LOG_TAG, msg);
+    }
+
+    private static void logDebug(String msg) {
+        if (DBG) {
+            Rlog.d(LOG_TAG, msg);
+        }
+    }
+}
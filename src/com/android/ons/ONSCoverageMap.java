@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityWcdma;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoWcdma;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learned opportunistic network coverage, keyed by the cell serving the primary subscription.
+ *
+ * For every serving cell the outcome of past scans is kept per opportunistic PLMN as decaying
+ * hit and miss weights, so old observations fade out as networks are built out. A PLMN that
+ * was looked for often enough from a cell and almost never found is considered absent there,
+ * and scans for it can be skipped while the device stays on that cell. The number of cells is
+ * bounded, the least recently used cell is evicted first. Cells are stored by a 64 bit hash of
+ * their key so outcomes can be persisted in fixed size records, see
+ * {@link ONSCoverageDatabase}. Times are wall clock so outcomes stay valid across reboots.
+ * Not thread safe, callers synchronize.
+ */
+public class ONSCoverageMap {
+    public static final int DEFAULT_MAX_CELLS = 256;
+    /* weight of an observation halves every HALF_LIFE_MS */
+    private static final long HALF_LIFE_MS = TimeUnit.DAYS.toMillis(7);
+    /* decayed observations needed before a cell is trusted to have no coverage */
+    private static final double MIN_OBSERVATIONS = 3;
+    /* weight observations may lose to decay and still count, so that observations spread
+       over a couple of days reach MIN_OBSERVATIONS */
+    private static final double OBSERVATION_DECAY_TOLERANCE = 0.5;
+    /* hit ratio under which a PLMN is considered absent */
+    private static final double MAX_NO_COVERAGE_HIT_RATIO = 0.1;
+
+    private final int mMaxCells;
+    private final LinkedHashMap<Long, Map<String, Outcomes>> mCells;
+    private Listener mListener;
+
+    /**
+     * Notified of every outcome change, to persist it.
+     */
+    public interface Listener {
+        void onOutcomeUpdated(long cellHash, String mccMnc, double hits, double misses,
+                long updateTime);
+    }
+
+    /**
+     * Decaying scan outcomes of one PLMN from one cell.
+     */
+    static class Outcomes {
+        double mHits;
+        double mMisses;
+        long mLastUpdateTime;
+
+        /* bring the weights to now, must be called before reading or updating them */
+        void decay(long now) {
+            if (now > mLastUpdateTime) {
+                mHits = ONSCoverageMap.decay(mHits, now - mLastUpdateTime);
+                mMisses = ONSCoverageMap.decay(mMisses, now - mLastUpdateTime);
+                mLastUpdateTime = now;
+            }
+        }
+    }
+
+    public ONSCoverageMap() {
+        this(DEFAULT_MAX_CELLS);
+    }
+
+    public ONSCoverageMap(int maxCells) {
+        mMaxCells = maxCells;
+        mCells = new LinkedHashMap<Long, Map<String, Outcomes>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Outcomes>> eldest) {
+                return size() > mMaxCells;
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return weight of an observation after ageMs
+     */
+    public static double decay(double weight, long ageMs) {
+        return ageMs <= 0 ? weight : weight * Math.pow(0.5, (double) ageMs / HALF_LIFE_MS);
+    }
+
+    /**
+     * @return 64 bit FNV-1a hash of a cell key
+     */
+    public static long hashCellKey(String cellKey) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < cellKey.length(); i++) {
+            hash ^= cellKey.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return stable key identifying the cell, null if the radio technology is not supported
+     */
+    public static String getCellKey(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoLte) {
+            CellIdentityLte identity = ((CellInfoLte) cellInfo).getCellIdentity();
+            return "L" + identity.getMccString() + identity.getMncString() + ":"
+                    + identity.getTac() + ":" + identity.getCi();
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            CellIdentityWcdma identity = ((CellInfoWcdma) cellInfo).getCellIdentity();
+            return "W" + identity.getMccString() + identity.getMncString() + ":"
+                    + identity.getLac() + ":" + identity.getCid();
+        } else if (cellInfo instanceof CellInfoGsm) {
+            CellIdentityGsm identity = ((CellInfoGsm) cellInfo).getCellIdentity();
+            return "G" + identity.getMccString() + identity.getMncString() + ":"
+                    + identity.getLac() + ":" + identity.getCid();
+        }
+        return null;
+    }
+
+    /**
+     * @return key of the registered cell in cellInfos, null if there is none
+     */
+    public static String getServingCellKey(List<CellInfo> cellInfos) {
+        if (cellInfos == null) {
+            return null;
+        }
+        for (CellInfo cellInfo : cellInfos) {
+            if (cellInfo.isRegistered()) {
+                return getCellKey(cellInfo);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * record whether a scan from cellKey found mccMnc.
+     */
+    public void recordOutcome(String cellKey, String mccMnc, boolean found, long now) {
+        long cellHash = hashCellKey(cellKey);
+        Outcomes outcomes = getOrCreateOutcomes(cellHash, mccMnc, now);
+        outcomes.decay(now);
+        if (found) {
+            outcomes.mHits++;
+        } else {
+            outcomes.mMisses++;
+        }
+        if (mListener != null) {
+            mListener.onOutcomeUpdated(cellHash, mccMnc, outcomes.mHits, outcomes.mMisses, now);
+        }
+    }
+
+    /**
+     * restore persisted outcomes, without notifying the listener.
+     */
+    public void restoreOutcome(long cellHash, String mccMnc, double hits, double misses,
+            long updateTime) {
+        Outcomes outcomes = getOrCreateOutcomes(cellHash, mccMnc, updateTime);
+        outcomes.mHits = hits;
+        outcomes.mMisses = misses;
+        outcomes.mLastUpdateTime = updateTime;
+    }
+
+    /**
+     * @return whether outcomes are known for the cell, without affecting eviction order
+     */
+    public boolean containsCell(long cellHash) {
+        return mCells.containsKey(cellHash);
+    }
+
+    private Outcomes getOrCreateOutcomes(long cellHash, String mccMnc, long now) {
+        Map<String, Outcomes> plmns = mCells.get(cellHash);
+        if (plmns == null) {
+            plmns = new HashMap<>();
+            mCells.put(cellHash, plmns);
+        }
+        Outcomes outcomes = plmns.get(mccMnc);
+        if (outcomes == null) {
+            outcomes = new Outcomes();
+            outcomes.mLastUpdateTime = now;
+            plmns.put(mccMnc, outcomes);
+        }
+        return outcomes;
+    }
+
+    /**
+     * @return true if none of mccMncs is expected to be found by a scan from cellKey
+     */
+    public boolean isKnownNoCoverage(String cellKey, List<String> mccMncs, long now) {
+        if (cellKey == null || mccMncs == null || mccMncs.isEmpty()) {
+            return false;
+        }
+        Map<String, Outcomes> plmns = mCells.get(hashCellKey(cellKey));
+        if (plmns == null) {
+            return false;
+        }
+        for (String mccMnc : mccMncs) {
+            Outcomes outcomes = plmns.get(mccMnc);
+            if (outcomes == null) {
+                return false;
+            }
+            outcomes.decay(now);
+            double observations = outcomes.mHits + outcomes.mMisses;
+            if (observations < MIN_OBSERVATIONS - OBSERVATION_DECAY_TOLERANCE
+                    || outcomes.mHits > observations * MAX_NO_COVERAGE_HIT_RATIO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of cells with recorded outcomes
+     */
+    public int size() {
+        return mCells.size();
+    }
+
+    public void clear() {
+        mCells.clear();
+    }
+
+    /**
+     * dump coverage map summary
+     */
+    public void dump(PrintWriter pw) {
+        pw.println(" coverageMap cells=" + mCells.size() + "/" + mMaxCells);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+
+/**
+ * Mapping of E-UTRA downlink EARFCNs to operating bands, per 3GPP TS 36.101 table 5.7.3-1.
+ */
+public class ONSEutranBands {
+    /* band, first and last downlink EARFCN, sorted by EARFCN */
+    private static final int[][] DOWNLINK_EARFCN_RANGES = {
+            {AccessNetworkConstants.EutranBand.BAND_1, 0, 599},
+            {AccessNetworkConstants.EutranBand.BAND_2, 600, 1199},
+            {AccessNetworkConstants.EutranBand.BAND_3, 1200, 1949},
+            {AccessNetworkConstants.EutranBand.BAND_4, 1950, 2399},
+            {AccessNetworkConstants.EutranBand.BAND_5, 2400, 2649},
+            {AccessNetworkConstants.EutranBand.BAND_6, 2650, 2749},
+            {AccessNetworkConstants.EutranBand.BAND_7, 2750, 3449},
+            {AccessNetworkConstants.EutranBand.BAND_8, 3450, 3799},
+            {AccessNetworkConstants.EutranBand.BAND_9, 3800, 4149},
+            {AccessNetworkConstants.EutranBand.BAND_10, 4150, 4749},
+            {AccessNetworkConstants.EutranBand.BAND_11, 4750, 4949},
+            {AccessNetworkConstants.EutranBand.BAND_12, 5010, 5179},
+            {AccessNetworkConstants.EutranBand.BAND_13, 5180, 5279},
+            {AccessNetworkConstants.EutranBand.BAND_14, 5280, 5379},
+            {AccessNetworkConstants.EutranBand.BAND_17, 5730, 5849},
+            {AccessNetworkConstants.EutranBand.BAND_18, 5850, 5999},
+            {AccessNetworkConstants.EutranBand.BAND_19, 6000, 6149},
+            {AccessNetworkConstants.EutranBand.BAND_20, 6150, 6449},
+            {AccessNetworkConstants.EutranBand.BAND_21, 6450, 6599},
+            {AccessNetworkConstants.EutranBand.BAND_25, 8040, 8689},
+            {AccessNetworkConstants.EutranBand.BAND_26, 8690, 9039},
+            {AccessNetworkConstants.EutranBand.BAND_28, 9210, 9659},
+            {AccessNetworkConstants.EutranBand.BAND_30, 9770, 9869},
+            {AccessNetworkConstants.EutranBand.BAND_38, 37750, 38249},
+            {AccessNetworkConstants.EutranBand.BAND_39, 38250, 38649},
+            {AccessNetworkConstants.EutranBand.BAND_40, 38650, 39649},
+            {AccessNetworkConstants.EutranBand.BAND_41, 39650, 41589},
+            {AccessNetworkConstants.EutranBand.BAND_42, 41590, 43589},
+            {AccessNetworkConstants.EutranBand.BAND_43, 43590, 45589},
+            {AccessNetworkConstants.EutranBand.BAND_46, 46790, 54539},
+            {AccessNetworkConstants.EutranBand.BAND_48, 55240, 56739},
+            {AccessNetworkConstants.EutranBand.BAND_66, 66436, 67335},
+            {AccessNetworkConstants.EutranBand.BAND_71, 68586, 68935},
+    };
+
+    private ONSEutranBands() {
+    }
+
+    /**
+     * @return band of the downlink earfcn, -1 if it is not in a known band
+     */
+    public static int getBand(int earfcn) {
+        int low = 0;
+        int high = DOWNLINK_EARFCN_RANGES.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int[] range = DOWNLINK_EARFCN_RANGES[mid];
+            if (earfcn < range[1]) {
+                high = mid - 1;
+            } else if (earfcn > range[2]) {
+                low = mid + 1;
+            } else {
+                return range[0];
+            }
+        }
+        return -1;
+    }
+}
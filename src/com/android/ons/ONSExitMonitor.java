@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.CellInfo;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.PhoneStateListener;
+import android.telephony.Rlog;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Watches the signal of the active opportunistic subscription after a selection.
+ *
+ * Once the LTE RSRP stays below the carrier's exit threshold for the carrier's hysteresis time,
+ * the owner is told to leave the network. The timer is only cancelled once RSRP recovers
+ * HYSTERESIS_DB above the threshold, so a signal hovering around it still triggers an exit.
+ * Signal callbacks and the trigger run on the looper passed at construction.
+ */
+public class ONSExitMonitor {
+    private static final String LOG_TAG = "ONSExitMonitor";
+    private static final boolean DBG = true;
+
+    /* margin above the exit threshold RSRP must recover by to cancel a pending exit */
+    @VisibleForTesting
+    protected static final int HYSTERESIS_DB = 3;
+
+    private static final int MSG_EXIT_TIME_TO_TRIGGER = 1;
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+    private final TelephonyManager mTelephonyManager;
+    private final CarrierConfigManager mCarrierConfigManager;
+    private final Callback mCallback;
+    private ONSScheduler mScheduler = ONSScheduler.getDefault();
+
+    /* monitored subscription, INVALID_SUBSCRIPTION_ID if not monitoring */
+    private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private int mExitThresholdRsrp;
+    private long mTimeToTriggerMs;
+    private TelephonyManager mMonitoredTelephonyManager;
+    private PhoneStateListener mPhoneStateListener;
+    private int mLastRsrp = CellInfo.UNAVAILABLE;
+    private int mExitCount;
+
+    /**
+     * Notified on the monitor looper when the monitored subscription should be left.
+     */
+    public interface Callback {
+        void onExitTriggered(int subId);
+    }
+
+    public ONSExitMonitor(Context context, Looper looper, TelephonyManager telephonyManager,
+            Callback callback) {
+        mTelephonyManager = telephonyManager;
+        mCarrierConfigManager = (CarrierConfigManager) context.getSystemService(
+                Context.CARRIER_CONFIG_SERVICE);
+        mCallback = callback;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_EXIT_TIME_TO_TRIGGER:
+                        onTimeToTriggerExpired((int) msg.obj);
+                        break;
+                    default:
+                        log("invalid message");
+                        break;
+                }
+            }
+        };
+    }
+
+    private PersistableBundle getCarrierConfig(int subId) {
+        PersistableBundle b = null;
+        if (mCarrierConfigManager != null) {
+            b = mCarrierConfigManager.getConfigForSubId(subId);
+        }
+        return b != null ? b : CarrierConfigManager.getDefaultConfig();
+    }
+
+    /**
+     * start watching subId, replacing any subscription watched before.
+     */
+    public void start(int subId) {
+        PersistableBundle config = getCarrierConfig(subId);
+        synchronized (mLock) {
+            stopLocked();
+            mSubId = subId;
+            mExitThresholdRsrp = config.getInt(
+                    CarrierConfigManager.KEY_OPPORTUNISTIC_NETWORK_EXIT_THRESHOLD_RSRP_INT);
+            mTimeToTriggerMs = config.getLong(CarrierConfigManager
+                    .KEY_OPPORTUNISTIC_NETWORK_ENTRY_OR_EXIT_HYSTERESIS_TIME_LONG);
+            mMonitoredTelephonyManager = mTelephonyManager.createForSubscriptionId(subId);
+            mPhoneStateListener = new PhoneStateListener(mHandler::post) {
+                @Override
+                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                    onRsrpChanged(subId, getLteRsrp(signalStrength));
+                }
+            };
+            mMonitoredTelephonyManager.listen(mPhoneStateListener,
+                    PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            logDebug("monitoring sub " + subId + " exit rsrp " + mExitThresholdRsrp
+                    + " time to trigger " + mTimeToTriggerMs);
+        }
+    }
+
+    /**
+     * override the carrier config thresholds of the monitored subscription.
+     */
+    @VisibleForTesting
+    protected void setThresholds(int exitThresholdRsrp, long timeToTriggerMs) {
+        synchronized (mLock) {
+            mExitThresholdRsrp = exitThresholdRsrp;
+            mTimeToTriggerMs = timeToTriggerMs;
+        }
+    }
+
+    /**
+     * stop watching, a pending exit is cancelled.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            stopLocked();
+        }
+    }
+
+    private void stopLocked() {
+        if (mPhoneStateListener != null) {
+            mMonitoredTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mPhoneStateListener = null;
+            mMonitoredTelephonyManager = null;
+        }
+        mScheduler.removeMessages(mHandler, MSG_EXIT_TIME_TO_TRIGGER);
+        mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        mLastRsrp = CellInfo.UNAVAILABLE;
+    }
+
+    private static int getLteRsrp(SignalStrength signalStrength) {
+        if (signalStrength == null) {
+            return CellInfo.UNAVAILABLE;
+        }
+        List<CellSignalStrengthLte> strengths =
+                signalStrength.getCellSignalStrengths(CellSignalStrengthLte.class);
+        return strengths.isEmpty() ? CellInfo.UNAVAILABLE : strengths.get(0).getRsrp();
+    }
+
+    /**
+     * feed a new RSRP measurement of subId.
+     */
+    @VisibleForTesting
+    protected void onRsrpChanged(int subId, int rsrp) {
+        synchronized (mLock) {
+            if (subId != mSubId || rsrp == CellInfo.UNAVAILABLE) {
+                return;
+            }
+            mLastRsrp = rsrp;
+            boolean isExitPending = mScheduler.hasMessages(mHandler, MSG_EXIT_TIME_TO_TRIGGER);
+            if (rsrp < mExitThresholdRsrp && !isExitPending) {
+                logDebug("sub " + subId + " rsrp " + rsrp + " below exit threshold");
+                mScheduler.sendMessageDelayed(
+                        Message.obtain(mHandler, MSG_EXIT_TIME_TO_TRIGGER, subId),
+                        mTimeToTriggerMs);
+            } else if (rsrp >= mExitThresholdRsrp + HYSTERESIS_DB && isExitPending) {
+                logDebug("sub " + subId + " rsrp " + rsrp + " recovered");
+                mScheduler.removeMessages(mHandler, MSG_EXIT_TIME_TO_TRIGGER);
+            }
+        }
+    }
+
+    private void onTimeToTriggerExpired(int subId) {
+        synchronized (mLock) {
+            if (subId != mSubId) {
+                return;
+            }
+            log("exit triggered for sub " + subId + " rsrp " + mLastRsrp);
+            mExitCount++;
+            stopLocked();
+        }
+        mCallback.onExitTriggered(subId);
+    }
+
+    /**
+     * @return monitored subscription, INVALID_SUBSCRIPTION_ID if none
+     */
+    public int getMonitoredSubId() {
+        synchronized (mLock) {
+            return mSubId;
+        }
+    }
+
+    @VisibleForTesting
+    protected void setScheduler(ONSScheduler scheduler) {
+        synchronized (mLock) {
+            mScheduler = scheduler;
+        }
+    }
+
+    /**
+     * dump exit monitor state
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(" exitMonitor sub=" + mSubId + " exitRsrp=" + mExitThresholdRsrp
+                    + " lastRsrp=" + mLastRsrp + " exitPending="
+                    + mScheduler.hasMessages(mHandler, MSG_EXIT_TIME_TO_TRIGGER)
+                    + " exits=" + mExitCount);
+        }
+    }
+
+    private static void log(String msg) {
+        Rlog.d(LOG_TAG, msg);
+    }
+
+    private static void logDebug(String msg) {
+        if (DBG) {
+            Rlog.d(LOG_TAG, msg);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide registry of ONS counters and latency histograms.
+ * All metrics are preallocated in fixed slots so recording on hot paths is lock free and
+ * does not allocate. Values are reported through dumpsys and can be queried by tests.
+ */
+public class ONSMetrics {
+    /* counters */
+    public static final int COUNTER_SCAN_STARTED = 0;
+    public static final int COUNTER_SCAN_STOPPED = 1;
+    public static final int COUNTER_SCAN_ERROR = 2;
+    public static final int COUNTER_SWITCH_REQUESTED = 3;
+    public static final int COUNTER_SWITCH_COMPLETED = 4;
+    public static final int COUNTER_BINDER_CALL = 5;
+    public static final int COUNTER_ENABLE_MODEM_FAILED = 6;
+    public static final int COUNTER_SCAN_SKIPPED_NO_COVERAGE = 7;
+    public static final int COUNTER_PASSIVE_DISCOVERY_HIT = 8;
+    public static final int COUNTER_EXIT_TRIGGERED = 9;
+    public static final int COUNTER_SERVICE_DIED = 10;
+    public static final int COUNTER_EARLY_COMMIT = 11;
+    public static final int COUNTER_SCAN_WATCHDOG_RECOVERY = 12;
+    private static final String[] COUNTER_NAMES = {
+            "scan_started",
+            "scan_stopped",
+            "scan_error",
+            "switch_requested",
+            "switch_completed",
+            "binder_call",
+            "enable_modem_failed",
+            "scan_skipped_no_coverage",
+            "passive_discovery_hit",
+            "exit_triggered",
+            "service_died",
+            "early_commit",
+            "scan_watchdog_recovery",
+    };
+
+    /* latency histograms */
+    public static final int LATENCY_SCAN_FIRST_RESULT = 0;
+    public static final int LATENCY_FIRST_RESULT_TO_DECISION = 1;
+    public static final int LATENCY_SWITCH = 2;
+    public static final int LATENCY_ENABLE_MODEM = 3;
+    public static final int LATENCY_UPDATE_AVAILABLE_NETWORKS = 4;
+    public static final int LATENCY_BINDER_CALL = 5;
+    public static final int LATENCY_SET_PREFERRED_DATA = 6;
+    public static final int LATENCY_SELECTION_TO_PREFERRED_DATA = 7;
+    private static final String[] LATENCY_NAMES = {
+            "scan_start_to_first_result",
+            "first_result_to_decision",
+            "switch_to_subscription",
+            "enable_modem",
+            "update_available_networks_to_callback",
+            "binder_call",
+            "set_preferred_data",
+            "selection_to_preferred_data",
+    };
+
+    /* upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded */
+    private static final long[] LATENCY_BUCKETS_MS =
+            {1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000, 120000};
+    private static final int BUCKET_COUNT = LATENCY_BUCKETS_MS.length + 1;
+    /* per histogram layout: buckets followed by sum and max */
+    private static final int HISTOGRAM_STRIDE = BUCKET_COUNT + 2;
+    private static final int SUM_OFFSET = BUCKET_COUNT;
+    private static final int MAX_OFFSET = BUCKET_COUNT + 1;
+
+    private static final ONSMetrics sInstance = new ONSMetrics();
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final AtomicLongArray mHistograms =
+            new AtomicLongArray(LATENCY_NAMES.length * HISTOGRAM_STRIDE);
+
+    public static ONSMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * increment a counter by one.
+     * @param counter one of the COUNTER_ constants
+     */
+    public void incrementCounter(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * record a latency sample.
+     * @param histogram one of the LATENCY_ constants
+     * @param latencyMs latency in milliseconds
+     */
+    public void recordLatency(int histogram, long latencyMs) {
+        int base = histogram * HISTOGRAM_STRIDE;
+        mHistograms.incrementAndGet(base + getBucket(latencyMs));
+        mHistograms.addAndGet(base + SUM_OFFSET, latencyMs);
+        long max;
+        do {
+            max = mHistograms.get(base + MAX_OFFSET);
+        } while (latencyMs > max && !mHistograms.compareAndSet(base + MAX_OFFSET, max, latencyMs));
+    }
+
+    /**
+     * record the latency from startTime, in {@link SystemClock#elapsedRealtime()}, until now.
+     */
+    public void recordLatencySince(int histogram, long startTime) {
+        recordLatency(histogram, SystemClock.elapsedRealtime() - startTime);
+    }
+
+    private static int getBucket(long latencyMs) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MS.length && latencyMs > LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * @return number of samples recorded in the histogram
+     */
+    public long getLatencyCount(int histogram) {
+        int base = histogram * HISTOGRAM_STRIDE;
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mHistograms.get(base + i);
+        }
+        return count;
+    }
+
+    /**
+     * @return snapshot of the histogram bucket counts, see {@link #getLatencyBucketBounds()}
+     */
+    public long[] getLatencyBuckets(int histogram) {
+        int base = histogram * HISTOGRAM_STRIDE;
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mHistograms.get(base + i);
+        }
+        return buckets;
+    }
+
+    public long getLatencyMax(int histogram) {
+        return mHistograms.get(histogram * HISTOGRAM_STRIDE + MAX_OFFSET);
+    }
+
+    /**
+     * @return inclusive upper bounds of all but the last, unbounded, histogram bucket
+     */
+    public static long[] getLatencyBucketBounds() {
+        return LATENCY_BUCKETS_MS.clone();
+    }
+
+    @VisibleForTesting
+    public void reset() {
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        for (int i = 0; i < mHistograms.length(); i++) {
+            mHistograms.set(i, 0);
+        }
+    }
+
+    /**
+     * dump counters and histograms
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("ONSMetrics:");
+        pw.println(" counters:");
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            pw.println("  " + COUNTER_NAMES[i] + "=" + mCounters.get(i));
+        }
+        pw.println(" latency:");
+        for (int i = 0; i < LATENCY_NAMES.length; i++) {
+            long count = getLatencyCount(i);
+            pw.print("  " + LATENCY_NAMES[i] + ": count=" + count);
+            if (count > 0) {
+                pw.print(" avg=" + mHistograms.get(i * HISTOGRAM_STRIDE + SUM_OFFSET) / count
+                        + "ms max=" + getLatencyMax(i) + "ms");
+            }
+            pw.print(" buckets:");
+            long[] buckets = getLatencyBuckets(i);
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                pw.print(" " + (bucket < LATENCY_BUCKETS_MS.length
+                        ? "<=" + LATENCY_BUCKETS_MS[bucket] : ">" + LATENCY_BUCKETS_MS[bucket - 1])
+                        + ":" + buckets[bucket]);
+            }
+            pw.println();
+        }
+    }
+}
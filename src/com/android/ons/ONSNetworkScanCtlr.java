@@ -21,14 +21,14 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.PersistableBundle;
-import android.telephony.AccessNetworkConstants;
+import android.os.SystemClock;
+import android.provider.DeviceConfig;
 import android.telephony.AvailableNetworkInfo;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoLte;
 import android.telephony.NetworkScan;
 import android.telephony.NetworkScanRequest;
-import android.telephony.RadioAccessSpecifier;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionInfo;
 import android.telephony.TelephonyManager;
@@ -37,7 +37,10 @@ import android.util.ArraySet;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -53,25 +56,103 @@ public class ONSNetworkScanCtlr {
     private static final int SEARCH_PERIODICITY_FAST = (int) TimeUnit.MINUTES.toSeconds(1);
     private static final int MAX_SEARCH_TIME = (int) TimeUnit.MINUTES.toSeconds(1);
     private static final int SCAN_RESTART_TIME = (int) TimeUnit.MINUTES.toMillis(1);
+    /* time past the search window a scan may stay silent before it is considered stuck */
+    @VisibleForTesting
+    protected static final long SCAN_WATCHDOG_GRACE_MS = TimeUnit.SECONDS.toMillis(30);
     private final Object mLock = new Object();
 
     /* message  to handle scan responses from modem */
     private static final int MSG_SCAN_RESULTS_AVAILABLE = 1;
     private static final int MSG_SCAN_COMPLETE = 2;
     private static final int MSG_SCAN_ERROR = 3;
+    private static final int MSG_SCAN_DEFERRED = 4;
+    private static final int MSG_PASSIVE_RESULTS_AVAILABLE = 5;
+    private static final int MSG_PARTIAL_RESULTS_FLUSH = 6;
+    private static final int MSG_SCAN_WATCHDOG = 7;
+    /* trace section per message, indexed by message id */
+    private static final String[] MSG_TRACE_NAMES = {
+            "ONSNetworkScanCtlr:unknown",
+            "ONSNetworkScanCtlr:scanResults",
+            "ONSNetworkScanCtlr:scanComplete",
+            "ONSNetworkScanCtlr:scanError",
+            "ONSNetworkScanCtlr:scanDeferred",
+            "ONSNetworkScanCtlr:passiveResults",
+            "ONSNetworkScanCtlr:partialResultsFlush",
+            "ONSNetworkScanCtlr:scanWatchdog",
+    };
+
+    /* DeviceConfig keys of the scan budget, in the telephony namespace */
+    private static final String KEY_SCAN_BUDGET_SECONDS_PER_HOUR =
+            "ons_scan_budget_seconds_per_hour";
+    private static final String KEY_SCAN_BUDGET_CARRIER_RESERVE_PERCENT =
+            "ons_scan_budget_carrier_reserve_percent";
+    /* DeviceConfig key enabling incremental scan results, in the telephony namespace */
+    private static final String KEY_INCREMENTAL_SCAN_RESULTS = "ons_incremental_scan_results";
 
     /* scan object to keep track of current scan request */
     private NetworkScan mCurrentScan;
-    private boolean mIsScanActive;
+    @VisibleForTesting
+    protected boolean mIsScanActive;
     private NetworkScanRequest mCurrentScanRequest;
+    /* request last passed to the modem, mCurrentScanRequest narrowed to the staged bands
+       with the tuned search parameters */
+    private NetworkScanRequest mActiveScanRequest;
+    /* plan mCurrentScanRequest was compiled from */
+    private ONSSelectionPlan mCurrentPlan;
+    /* priority of the requester of mCurrentScanRequest */
+    private int mScanPriority = ONSScanBudgetGovernor.PRIORITY_SYSTEM;
+    /* mCurrentScanRequest is waiting for scan budget */
+    private boolean mIsScanDeferred;
+    /* scheduler time at which budget was charged for the current scan */
+    private long mScanChargeTime;
+    /* budget in ms charged for the current scan, refunds are capped to it */
+    private long mScanChargedMs;
+    @VisibleForTesting
+    protected ONSScanBudgetGovernor mScanBudgetGovernor;
+    @VisibleForTesting
+    protected ONSCoverageMap mCoverageMap = new ONSCoverageMap();
+    @VisibleForTesting
+    protected ONSBandHistory mBandHistory = new ONSBandHistory();
+    @VisibleForTesting
+    protected ONSScanParamTuner mScanParamTuner = new ONSScanParamTuner();
+    /* parameters of the last scan started, null before the first one */
+    private ONSScanParamTuner.Params mScanParams;
+    /* id of the last scan started, to match its watchdog */
+    private int mScanId;
+    private int mWatchdogRecoveryCount;
+    /* the current scan only sweeps the bands its PLMNs were found on before */
+    @VisibleForTesting
+    protected boolean mIsKnownBandsScan;
+    /* a known bands scan of mCurrentPlan found nothing, scan all bands until the plan changes */
+    private boolean mIsKnownBandsStageDone;
+    /* request incremental results and report them as soon as a cell reaches the entry
+       threshold, instead of at the end of each search window */
+    @VisibleForTesting
+    protected boolean mIsIncrementalResultsEnabled;
+    /* the current scan reports incremental results */
+    private boolean mIsIncrementalScan;
+    /* usable cells of the current incremental scan not reported yet */
+    private final List<CellInfo> mPartialResults = new ArrayList<CellInfo>();
+    /* primary serving cell when the current scan started, and the PLMNs it found so far */
+    private String mScanCellKey;
+    private final Set<String> mFoundMccMncs = new ArraySet<>();
     private List<String> mMccMncs;
     private TelephonyManager mTelephonyManager;
     private CarrierConfigManager configManager;
     private int mRsrpEntryThreshold;
+    /* RSRP at which a partial result is reported without waiting for the search window */
+    private int mRsrpCommitThreshold;
+    /* elapsed realtime at which the current scan was requested */
+    private long mScanStartTime;
+    private boolean mIsFirstResultReceived;
+    /* cookie of the async trace track of the current scan, 0 if none is open */
+    private int mScanTraceCookie;
+    private int mLastScanTraceCookie;
     @VisibleForTesting
     protected NetworkAvailableCallBack mNetworkAvailableCallBack;
     HandlerThread mThread;
     private Handler mHandler;
+    private ONSScheduler mScheduler = ONSScheduler.getDefault();
 
     @VisibleForTesting
     public TelephonyScanManager.NetworkScanCallback mNetworkScanCallback =
@@ -91,8 +172,28 @@ public class ONSNetworkScanCtlr {
         @Override
         public void onComplete() {
             logDebug("Scan completed!");
-            Message message = Message.obtain(mHandler, MSG_SCAN_COMPLETE, NetworkScan.SUCCESS);
-            mHandler.sendMessageDelayed(message, SCAN_RESTART_TIME);
+            synchronized (mLock) {
+                /* the modem is idle until the scan is restarted */
+                mScheduler.removeMessages(mHandler, MSG_SCAN_WATCHDOG);
+                endScanTrace();
+                if (mIsKnownBandsScan && mFoundMccMncs.isEmpty()) {
+                    logDebug("nothing found on known bands, widen to all bands");
+                    mIsKnownBandsStageDone = true;
+                }
+                /* missing a PLMN on some of the bands does not mean it has no coverage */
+                recordScanOutcomes(!mIsKnownBandsScan);
+                if (!mPartialResults.isEmpty()) {
+                    /* no cell reached the entry threshold, report what the window found */
+                    mScheduler.sendMessageDelayed(Message.obtain(mHandler,
+                            MSG_PARTIAL_RESULTS_FLUSH, new ArrayList<CellInfo>(mPartialResults)),
+                            0);
+                    mPartialResults.clear();
+                }
+                Message message = Message.obtain(mHandler, MSG_SCAN_COMPLETE,
+                        NetworkScan.SUCCESS);
+                mScheduler.sendMessageDelayed(message, mScanParams != null
+                        ? mScanParams.restartDelayMs : SCAN_RESTART_TIME);
+            }
         }
 
         @Override
@@ -145,8 +246,20 @@ public class ONSNetworkScanCtlr {
         }
         List<CellInfo> filteredResults = new ArrayList<CellInfo>();
         synchronized (mLock) {
+            if (!mIsFirstResultReceived) {
+                mIsFirstResultReceived = true;
+                ONSMetrics.getInstance().recordLatencySince(
+                        ONSMetrics.LATENCY_SCAN_FIRST_RESULT, mScanStartTime);
+            }
             for (CellInfo cellInfo : results) {
-                if (mMccMncs.contains(getMccMnc(cellInfo))) {
+                String mccMnc = getMccMnc(cellInfo);
+                if (mMccMncs.contains(mccMnc)) {
+                    if (mFoundMccMncs.isEmpty()) {
+                        mScanParamTuner.recordTimeToFirstHit(
+                                mScheduler.elapsedRealtime() - mScanChargeTime);
+                    }
+                    mFoundMccMncs.add(mccMnc);
+                    recordBandHit(cellInfo);
                     if (cellInfo instanceof CellInfoLte) {
                         int rsrp = ((CellInfoLte) cellInfo).getCellSignalStrength().getRsrp();
                         logDebug("cell info rsrp: " + rsrp);
@@ -156,6 +269,9 @@ public class ONSNetworkScanCtlr {
                     }
                 }
             }
+            if (mIsIncrementalScan && !filteredResults.isEmpty()) {
+                filteredResults = getEarlyCommitResults(filteredResults);
+            }
         }
         if ((filteredResults.size() >= 1) && (mNetworkAvailableCallBack != null)) {
             /* Todo: change to aggregate results on success. */
@@ -163,15 +279,63 @@ public class ONSNetworkScanCtlr {
         }
     }
 
+    /* collect usable cells of a partial result, must be called with mLock held
+       @return all usable cells of the scan so far once one of them reaches the entry threshold,
+               else an empty list */
+    private List<CellInfo> getEarlyCommitResults(List<CellInfo> filteredResults) {
+        boolean isCommitCandidateFound = false;
+        for (CellInfo cellInfo : filteredResults) {
+            if (!mPartialResults.contains(cellInfo)) {
+                mPartialResults.add(cellInfo);
+            }
+            if (((CellInfoLte) cellInfo).getCellSignalStrength().getRsrp()
+                    >= mRsrpCommitThreshold) {
+                isCommitCandidateFound = true;
+            }
+        }
+        if (!isCommitCandidateFound) {
+            return new ArrayList<CellInfo>();
+        }
+        logDebug("early commit with " + mPartialResults.size() + " partial results");
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_EARLY_COMMIT);
+        List<CellInfo> results = new ArrayList<CellInfo>(mPartialResults);
+        mPartialResults.clear();
+        return results;
+    }
+
+    /* report the partial results of a search window that ended, unless the request went away */
+    private void flushPartialResults(List<CellInfo> results) {
+        synchronized (mLock) {
+            if (mCurrentScanRequest == null) {
+                return;
+            }
+        }
+        if (mNetworkAvailableCallBack != null) {
+            mNetworkAvailableCallBack.onNetworkAvailability(results);
+        }
+    }
+
     private void invalidateScanOnError(int error) {
         logDebug("scan invalidated on error");
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SCAN_ERROR);
         if (mNetworkAvailableCallBack != null) {
             mNetworkAvailableCallBack.onError(error);
         }
 
         synchronized (mLock) {
+            if (mIsScanActive && mCurrentScanRequest != null) {
+                long now = mScheduler.elapsedRealtime();
+                mScanBudgetGovernor.refund(mScanChargedMs - (now - mScanChargeTime), now);
+            }
+            mScheduler.removeMessages(mHandler, MSG_SCAN_WATCHDOG);
+            recordScanOutcomes(false);
+            if (mIsKnownBandsScan) {
+                mIsKnownBandsStageDone = true;
+            }
+            mPartialResults.clear();
             mIsScanActive = false;
             mCurrentScan = null;
+            endScanTrace();
         }
     }
 
@@ -192,6 +356,16 @@ public class ONSNetworkScanCtlr {
         mThread = new HandlerThread(LOG_TAG);
         mThread.start();
         mHandler =  new Handler(mThread.getLooper()) {
+            @Override
+            public void dispatchMessage(Message msg) {
+                ONSTrace.beginMessage(MSG_TRACE_NAMES, msg.what);
+                try {
+                    super.dispatchMessage(msg);
+                } finally {
+                    ONSTrace.endSection();
+                }
+            }
+
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
@@ -208,6 +382,22 @@ public class ONSNetworkScanCtlr {
                         logDebug("Msg received for scan error");
                         invalidateScanOnError((int) msg.obj);
                         break;
+                    case MSG_SCAN_DEFERRED:
+                        logDebug("Msg received for deferred scan");
+                        restartScan();
+                        break;
+                    case MSG_PASSIVE_RESULTS_AVAILABLE:
+                        logDebug("Msg received for passive results");
+                        deliverPassiveResults((List<CellInfo>) msg.obj);
+                        break;
+                    case MSG_PARTIAL_RESULTS_FLUSH:
+                        logDebug("Msg received for partial results flush");
+                        flushPartialResults((List<CellInfo>) msg.obj);
+                        break;
+                    case MSG_SCAN_WATCHDOG:
+                        logDebug("Msg received for scan watchdog");
+                        onScanWatchdogExpired(msg.arg1);
+                        break;
                     default:
                         log("invalid message");
                         break;
@@ -218,6 +408,48 @@ public class ONSNetworkScanCtlr {
         mNetworkAvailableCallBack = networkAvailableCallBack;
         configManager = (CarrierConfigManager) context.getSystemService(
                 Context.CARRIER_CONFIG_SERVICE);
+        mScanBudgetGovernor = createScanBudgetGovernor();
+        try {
+            mIsIncrementalResultsEnabled = DeviceConfig.getBoolean(
+                    DeviceConfig.NAMESPACE_TELEPHONY, KEY_INCREMENTAL_SCAN_RESULTS, false);
+        } catch (SecurityException e) {
+            log("Could not read incremental scan config " + e);
+        }
+    }
+
+    private ONSScanBudgetGovernor createScanBudgetGovernor() {
+        long budgetSecondsPerHour = ONSScanBudgetGovernor.DEFAULT_BUDGET_SECONDS_PER_HOUR;
+        int carrierReservePercent = ONSScanBudgetGovernor.DEFAULT_CARRIER_RESERVE_PERCENT;
+        try {
+            budgetSecondsPerHour = DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+                    KEY_SCAN_BUDGET_SECONDS_PER_HOUR, budgetSecondsPerHour);
+            carrierReservePercent = DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                    KEY_SCAN_BUDGET_CARRIER_RESERVE_PERCENT, carrierReservePercent);
+        } catch (SecurityException e) {
+            log("Could not read scan budget config " + e);
+        }
+        return new ONSScanBudgetGovernor(budgetSecondsPerHour, carrierReservePercent,
+                mScheduler.elapsedRealtime());
+    }
+
+    /**
+     * replace the scheduler of delayed scan restarts.
+     */
+    @VisibleForTesting
+    protected void setScheduler(ONSScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * restore coverage learned before the last reboot from database and persist further
+     * updates to it. Reads the whole database, must not be called on the main thread.
+     */
+    public void setCoverageDatabase(ONSCoverageDatabase database) {
+        synchronized (mLock) {
+            database.setScheduler(mScheduler);
+            database.load(mCoverageMap);
+            mCoverageMap.setListener(database);
+        }
     }
 
     /* get mcc mnc from cell info if the cell is for LTE */
@@ -230,31 +462,24 @@ public class ONSNetworkScanCtlr {
         return null;
     }
 
-    private NetworkScanRequest createNetworkScanRequest(ArrayList<AvailableNetworkInfo> availableNetworks,
-            int periodicity) {
-        RadioAccessSpecifier[] ras = new RadioAccessSpecifier[1];
-        ArrayList<String> mccMncs = new ArrayList<String>();
-        Set<Integer> bandSet = new ArraySet<>();
-
-        /* by default add band 48 */
-        bandSet.add(AccessNetworkConstants.EutranBand.BAND_48);
-        /* retrieve mcc mncs and bands for available networks */
-        for (AvailableNetworkInfo availableNetwork : availableNetworks) {
-            mccMncs.addAll(availableNetwork.getMccMncs());
-            bandSet.addAll(availableNetwork.getBands());
-        }
-
-        int[] bands = bandSet.stream().mapToInt(band->band).toArray();
-        /* create network scan request */
-        ras[0] = new RadioAccessSpecifier(AccessNetworkConstants.AccessNetworkType.EUTRAN, bands,
-                null);
-        NetworkScanRequest networkScanRequest = new NetworkScanRequest(
-                NetworkScanRequest.SCAN_TYPE_PERIODIC, ras, periodicity, MAX_SEARCH_TIME, false,
-                NetworkScanRequest.MAX_INCREMENTAL_PERIODICITY_SEC, mccMncs);
+    @VisibleForTesting
+    protected NetworkScanRequest createNetworkScanRequest(
+            ArrayList<AvailableNetworkInfo> availableNetworks, int periodicity) {
+        ONSSelectionPlan plan = ONSSelectionPlan.compile(availableNetworks, periodicity,
+                MAX_SEARCH_TIME);
         synchronized (mLock) {
-            mMccMncs = mccMncs;
+            mMccMncs = plan.getMccMncs();
         }
-        return networkScanRequest;
+        return plan.getScanRequest();
+    }
+
+    /**
+     * compile the plan of a fast network scan for availableNetworks.
+     */
+    public static ONSSelectionPlan compileFastScanPlan(
+            List<AvailableNetworkInfo> availableNetworks) {
+        return ONSSelectionPlan.compile(availableNetworks, SEARCH_PERIODICITY_FAST,
+                MAX_SEARCH_TIME);
     }
 
     /**
@@ -263,17 +488,33 @@ public class ONSNetworkScanCtlr {
      * @return true if successfully accepted request.
      */
     public boolean startFastNetworkScan(ArrayList<AvailableNetworkInfo> availableNetworks) {
-        NetworkScanRequest networkScanRequest = createNetworkScanRequest(availableNetworks,
-                SEARCH_PERIODICITY_FAST);
-        return startNetworkScan(networkScanRequest);
+        return startFastNetworkScan(availableNetworks, ONSScanBudgetGovernor.PRIORITY_SYSTEM);
     }
 
+    /**
+     * start less interval network scan
+     * @param availableNetworks list of subscriptions for which the scanning needs to be started.
+     * @param priority requester priority for the scan budget, see {@link ONSScanBudgetGovernor}
+     * @return true if successfully accepted request.
+     */
+    public boolean startFastNetworkScan(ArrayList<AvailableNetworkInfo> availableNetworks,
+            int priority) {
+        return startFastNetworkScan(compileFastScanPlan(availableNetworks), priority);
+    }
 
-    private boolean startNetworkScan(NetworkScanRequest networkScanRequest) {
-        NetworkScan networkScan;
+    /**
+     * start the network scan of a compiled plan
+     * @param plan plan compiled by {@link #compileFastScanPlan}
+     * @param priority requester priority for the scan budget, see {@link ONSScanBudgetGovernor}
+     * @return true if successfully accepted request.
+     */
+    public boolean startFastNetworkScan(ONSSelectionPlan plan, int priority) {
+        NetworkScanRequest networkScanRequest = plan.getScanRequest();
+        List<CellInfo> cellInfos = mTelephonyManager.getAllCellInfo();
         synchronized (mLock) {
             /* if the request is same as existing one, then make sure to not proceed */
-            if (mIsScanActive && mCurrentScanRequest.equals(networkScanRequest)) {
+            if ((mIsScanActive || mIsScanDeferred) && (mCurrentPlan == plan
+                    || mCurrentScanRequest.equals(networkScanRequest))) {
                 return true;
             }
 
@@ -284,14 +525,15 @@ public class ONSNetworkScanCtlr {
             mRsrpEntryThreshold =
                 getIntCarrierConfig(
                     CarrierConfigManager.KEY_OPPORTUNISTIC_NETWORK_EXIT_THRESHOLD_RSRP_INT);
+            mRsrpCommitThreshold = getIntCarrierConfig(
+                    CarrierConfigManager.KEY_OPPORTUNISTIC_NETWORK_ENTRY_THRESHOLD_RSRP_INT);
 
-            /* start new scan */
-            networkScan = mTelephonyManager.requestNetworkScan(networkScanRequest,
-                    mNetworkScanCallback);
-
-            mCurrentScan = networkScan;
-            mIsScanActive = true;
+            mCurrentPlan = plan;
             mCurrentScanRequest = networkScanRequest;
+            mIsKnownBandsStageDone = false;
+            mMccMncs = plan.getMccMncs();
+            mScanPriority = priority;
+            requestScanWithinBudget(cellInfos);
         }
 
         logDebug("startNetworkScan " + networkScanRequest);
@@ -299,15 +541,213 @@ public class ONSNetworkScanCtlr {
     }
 
     private void restartScan() {
-        NetworkScan networkScan;
         logDebug("restartScan");
+        List<CellInfo> cellInfos = mTelephonyManager.getAllCellInfo();
         synchronized (mLock) {
             if (mCurrentScanRequest != null) {
-                networkScan = mTelephonyManager.requestNetworkScan(mCurrentScanRequest,
-                        mNetworkScanCallback);
-                mIsScanActive = true;
+                requestScanWithinBudget(cellInfos);
+            }
+        }
+    }
+
+    /* start mCurrentScanRequest if the scan budget allows, else retry once it does.
+       cellInfos is fetched by the caller before taking mLock, must be called with mLock held */
+    private void requestScanWithinBudget(List<CellInfo> cellInfos) {
+        long now = mScheduler.elapsedRealtime();
+        mScanCellKey = ONSCoverageMap.getServingCellKey(cellInfos);
+        List<CellInfo> passiveResults = getPassiveResults(cellInfos);
+        if (!passiveResults.isEmpty()) {
+            /* the modem already reports a usable neighbour, no need to scan for it */
+            logDebug("scan skipped, " + passiveResults.size() + " neighbours found passively");
+            ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_PASSIVE_DISCOVERY_HIT);
+            for (CellInfo cellInfo : passiveResults) {
+                mFoundMccMncs.add(getMccMnc(cellInfo));
+                recordBandHit(cellInfo);
+            }
+            recordScanOutcomes(false);
+            deferScan(SCAN_RESTART_TIME);
+            mScheduler.sendMessageDelayed(
+                    Message.obtain(mHandler, MSG_PASSIVE_RESULTS_AVAILABLE, passiveResults), 0);
+            return;
+        }
+        if (mCoverageMap.isKnownNoCoverage(mScanCellKey, mMccMncs,
+                mScheduler.currentTimeMillis())) {
+            /* check again later, the device may have moved to another cell by then */
+            logDebug("scan skipped, no coverage known at " + mScanCellKey);
+            ONSMetrics.getInstance().incrementCounter(
+                    ONSMetrics.COUNTER_SCAN_SKIPPED_NO_COVERAGE);
+            deferScan(SCAN_RESTART_TIME);
+            return;
+        }
+        int[] bands = getStagedBands();
+        ONSScanParamTuner.Params params = mScanParamTuner.tune(bands.length, mScanPriority,
+                mScanBudgetGovernor.getAvailableMs(now), mScanBudgetGovernor.getCapacityMs());
+        long delay = mScanBudgetGovernor.requestScan(mScanPriority,
+                TimeUnit.SECONDS.toMillis(params.maxSearchTimeSec), now);
+        if (delay > 0) {
+            logDebug("scan deferred by " + delay + "ms for budget");
+            deferScan(delay);
+            return;
+        }
+        mIsScanDeferred = false;
+        mScanChargeTime = now;
+        mScanChargedMs = mScanBudgetGovernor.getLastChargedMs();
+        mScanParams = params;
+        mIsIncrementalScan = mIsIncrementalResultsEnabled;
+        logDebug("scan bands " + Arrays.toString(bands) + " " + params);
+        mActiveScanRequest = mCurrentPlan.createScanRequest(bands, params.searchPeriodicitySec,
+                params.maxSearchTimeSec, mIsIncrementalScan);
+        mCurrentScan = mTelephonyManager.requestNetworkScan(mActiveScanRequest,
+                mNetworkScanCallback);
+        mIsScanActive = true;
+        onScanStarted();
+        /* the modem may never report the end of the scan, do not wait for it forever */
+        mScheduler.sendMessageDelayed(Message.obtain(mHandler, MSG_SCAN_WATCHDOG, ++mScanId, 0),
+                TimeUnit.SECONDS.toMillis(params.maxSearchTimeSec) + SCAN_WATCHDOG_GRACE_MS);
+    }
+
+    /* stop and restart a scan that did not complete nor fail within its search window */
+    private void onScanWatchdogExpired(int scanId) {
+        List<CellInfo> cellInfos = mTelephonyManager.getAllCellInfo();
+        synchronized (mLock) {
+            if (!mIsScanActive || scanId != mScanId || mCurrentScanRequest == null) {
+                return;
+            }
+            log("scan " + scanId + " silent past its search window, restarting");
+            mWatchdogRecoveryCount++;
+            ONSMetrics.getInstance().incrementCounter(
+                    ONSMetrics.COUNTER_SCAN_WATCHDOG_RECOVERY);
+            recordScanOutcomes(false);
+            mPartialResults.clear();
+            if (mCurrentScan != null) {
+                try {
+                    mCurrentScan.stopScan();
+                } catch (IllegalArgumentException iae) {
+                    logDebug("Stopping stuck scan failed with exception " + iae);
+                }
+            }
+            mIsScanActive = false;
+            mCurrentScan = null;
+            endScanTrace();
+            requestScanWithinBudget(cellInfos);
+        }
+    }
+
+    @VisibleForTesting
+    protected int getWatchdogRecoveryCount() {
+        synchronized (mLock) {
+            return mWatchdogRecoveryCount;
+        }
+    }
+
+    /* the bands of the current stage: the bands the PLMNs were found on before, then all bands
+       of the plan once that found nothing. must be called with mLock held */
+    private int[] getStagedBands() {
+        mIsKnownBandsScan = false;
+        if (!mIsKnownBandsStageDone) {
+            int[] bands = mBandHistory.getKnownBands(mMccMncs, mCurrentPlan);
+            if (bands.length > 0 && bands.length < mCurrentPlan.getBandCount()) {
+                mIsKnownBandsScan = true;
+                return bands;
+            }
+        }
+        return mCurrentPlan.getBands();
+    }
+
+    /* count the band of a cell found for the current request, must be called with mLock held */
+    private void recordBandHit(CellInfo cellInfo) {
+        if (!(cellInfo instanceof CellInfoLte)) {
+            return;
+        }
+        int earfcn = ((CellInfoLte) cellInfo).getCellIdentity().getEarfcn();
+        int band = earfcn == CellInfo.UNAVAILABLE ? -1 : ONSEutranBands.getBand(earfcn);
+        if (band != -1) {
+            mBandHistory.recordHit(getMccMnc(cellInfo), band);
+        }
+    }
+
+    /* neighbour cells in cellInfos that the current scan request would report above the entry
+       threshold, must be called with mLock held */
+    private List<CellInfo> getPassiveResults(List<CellInfo> cellInfos) {
+        List<CellInfo> results = new ArrayList<CellInfo>();
+        if (cellInfos == null) {
+            return results;
+        }
+        for (CellInfo cellInfo : cellInfos) {
+            if (cellInfo.isRegistered() || !(cellInfo instanceof CellInfoLte)
+                    || !mMccMncs.contains(getMccMnc(cellInfo))) {
+                continue;
+            }
+            CellInfoLte cellInfoLte = (CellInfoLte) cellInfo;
+            if (cellInfoLte.getCellSignalStrength().getRsrp() < mRsrpEntryThreshold) {
+                continue;
+            }
+            /* older modems do not report the earfcn of neighbours, trust the PLMN then */
+            int earfcn = cellInfoLte.getCellIdentity().getEarfcn();
+            if (earfcn != CellInfo.UNAVAILABLE
+                    && !mCurrentPlan.containsBand(ONSEutranBands.getBand(earfcn))) {
+                continue;
+            }
+            results.add(cellInfo);
+        }
+        return results;
+    }
+
+    /* report neighbours found by the passive stage, unless the request went away since */
+    private void deliverPassiveResults(List<CellInfo> results) {
+        synchronized (mLock) {
+            if (!mIsScanDeferred) {
+                return;
             }
         }
+        if (mNetworkAvailableCallBack != null) {
+            mNetworkAvailableCallBack.onNetworkAvailability(results);
+        }
+    }
+
+    /* retry mCurrentScanRequest after delayMs, must be called with mLock held */
+    private void deferScan(long delayMs) {
+        mIsScanActive = false;
+        mCurrentScan = null;
+        mScheduler.removeMessages(mHandler, MSG_SCAN_WATCHDOG);
+        mIsScanDeferred = true;
+        mScheduler.removeMessages(mHandler, MSG_SCAN_DEFERRED);
+        mScheduler.sendEmptyMessageDelayed(mHandler, MSG_SCAN_DEFERRED, delayMs);
+    }
+
+    /* feed the outcome of the current scan to the coverage map, must be called with mLock held
+       @param isComplete whether the scan ran for its full search time */
+    private void recordScanOutcomes(boolean isComplete) {
+        if (mScanCellKey != null && mCurrentScanRequest != null) {
+            long now = mScheduler.currentTimeMillis();
+            for (String mccMnc : mMccMncs) {
+                boolean found = mFoundMccMncs.contains(mccMnc);
+                /* a scan cut short says nothing about the networks it did not find */
+                if (found || isComplete) {
+                    mCoverageMap.recordOutcome(mScanCellKey, mccMnc, found, now);
+                }
+            }
+        }
+        mFoundMccMncs.clear();
+    }
+
+    private void onScanStarted() {
+        endScanTrace();
+        mScanTraceCookie = ++mLastScanTraceCookie;
+        ONSTrace.beginAsync(ONSTrace.TRACK_NETWORK_SCAN, mScanTraceCookie);
+        mScanStartTime = SystemClock.elapsedRealtime();
+        mIsFirstResultReceived = false;
+        mFoundMccMncs.clear();
+        mPartialResults.clear();
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SCAN_STARTED);
+    }
+
+    /* close the async trace track of the current scan, must be called with mLock held */
+    private void endScanTrace() {
+        if (mScanTraceCookie != 0) {
+            ONSTrace.endAsync(ONSTrace.TRACK_NETWORK_SCAN, mScanTraceCookie);
+            mScanTraceCookie = 0;
+        }
     }
 
     /**
@@ -316,16 +756,69 @@ public class ONSNetworkScanCtlr {
     public void stopNetworkScan() {
         logDebug("stopNetworkScan");
         synchronized (mLock) {
+            /* results found for the stopped scan must not reach the next request */
+            mScheduler.removeMessages(mHandler, MSG_PASSIVE_RESULTS_AVAILABLE);
+            mScheduler.removeMessages(mHandler, MSG_PARTIAL_RESULTS_FLUSH);
+            if (mIsScanDeferred) {
+                mScheduler.removeMessages(mHandler, MSG_SCAN_DEFERRED);
+                mIsScanDeferred = false;
+                mCurrentScanRequest = null;
+                mActiveScanRequest = null;
+                mCurrentPlan = null;
+            }
+            mScheduler.removeMessages(mHandler, MSG_SCAN_WATCHDOG);
             if (mIsScanActive && mCurrentScan != null) {
+                recordScanOutcomes(false);
+                /* return the budget of the search time the modem will not spend */
+                long now = mScheduler.elapsedRealtime();
+                mScanBudgetGovernor.refund(mScanChargedMs - (now - mScanChargeTime), now);
                 try {
                     mCurrentScan.stopScan();
                 } catch (IllegalArgumentException iae) {
                     logDebug("Scan failed with exception " + iae);
                 }
                 mIsScanActive = false;
+                mIsKnownBandsScan = false;
+                mIsIncrementalScan = false;
+                mPartialResults.clear();
                 mCurrentScan = null;
                 mCurrentScanRequest = null;
+                mActiveScanRequest = null;
+                mCurrentPlan = null;
+                endScanTrace();
+                ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SCAN_STOPPED);
+            }
+        }
+    }
+
+    /**
+     * dump scan state
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(LOG_TAG + ":");
+        synchronized (mLock) {
+            pw.println(" mIsScanActive=" + mIsScanActive + " mIsScanDeferred=" + mIsScanDeferred
+                    + " mScanPriority=" + mScanPriority);
+            if (mActiveScanRequest != null) {
+                pw.println(" searchPeriodicity=" + mActiveScanRequest.getSearchPeriodicity()
+                        + "s maxSearchTime=" + mActiveScanRequest.getMaxSearchTime() + "s");
+                pw.println(" scanAgeMs=" + (SystemClock.elapsedRealtime() - mScanStartTime));
+                pw.println(" firstResultReceived=" + mIsFirstResultReceived);
             }
+            pw.println(" mActiveScanRequest=" + mActiveScanRequest);
+            pw.println(" mMccMncs=" + mMccMncs);
+            pw.println(" mRsrpEntryThreshold=" + mRsrpEntryThreshold);
+            mScanBudgetGovernor.dump(pw, mScheduler.elapsedRealtime());
+            pw.println(" mIsKnownBandsScan=" + mIsKnownBandsScan
+                    + " mIsKnownBandsStageDone=" + mIsKnownBandsStageDone);
+            pw.println(" mIsIncrementalScan=" + mIsIncrementalScan
+                    + " mRsrpCommitThreshold=" + mRsrpCommitThreshold
+                    + " partialResults=" + mPartialResults.size());
+            pw.println(" mScanParams=" + mScanParams
+                    + " watchdogRecoveries=" + mWatchdogRecoveryCount);
+            mCoverageMap.dump(pw);
+            mBandHistory.dump(pw);
+            mScanParamTuner.dump(pw);
         }
     }
 
@@ -29,7 +29,8 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.RemoteException;
-import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.provider.DeviceConfig;
 import android.telephony.AvailableNetworkInfo;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoLte;
@@ -38,19 +39,23 @@ import android.telephony.SignalStrength;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
-import android.text.TextUtils;
+import android.util.ArraySet;
+import android.util.LocalLog;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ISetOpportunisticDataCallback;
 import com.android.internal.telephony.ISub;
 import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -64,6 +69,12 @@ public class ONSProfileSelector {
 
     private static final int INVALID_SEQUENCE_ID = -1;
     private static final int START_SEQUENCE_ID = 1;
+    private static final int MAX_DECISION_LOG_SIZE = 50;
+
+    /* DeviceConfig key, in the telephony namespace, to make a selected subscription the
+       preferred data subscription without waiting for the requester to ask for it */
+    private static final String KEY_PREFER_DATA_AFTER_SELECTION =
+            "ons_prefer_data_after_selection";
 
     /* message to indicate profile update */
     private static final int MSG_PROFILE_UPDATE = 1;
@@ -74,6 +85,14 @@ public class ONSProfileSelector {
     /* message to indicate Subscription switch completion */
     private static final int MSG_SUB_SWITCH_COMPLETE = 3;
 
+    /* trace section per message, indexed by message id */
+    private static final String[] MSG_TRACE_NAMES = {
+            "ONSProfileSelector:unknown",
+            "ONSProfileSelector:profileUpdate",
+            "ONSProfileSelector:startProfileSelection",
+            "ONSProfileSelector:subSwitchComplete",
+    };
+
     private boolean mIsEnabled = false;
 
     @VisibleForTesting
@@ -91,12 +110,41 @@ public class ONSProfileSelector {
     protected SubscriptionManager mSubscriptionManager;
     @VisibleForTesting
     protected List<SubscriptionInfo> mOppSubscriptionInfos;
+    /* subscription ids of mOppSubscriptionInfos */
+    @VisibleForTesting
+    protected Set<Integer> mOppSubIds = new ArraySet<>();
     private ONSProfileSelectionCallback mProfileSelectionCallback;
     private int mSequenceId;
     private int mSubId;
+    /* preferred data sub last set through this selector, guarded by mLock */
     private int mCurrentDataSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-    private ArrayList<AvailableNetworkInfo> mAvailableNetworkInfos;
+    /* true while the preferred data sub was set by a selection rather than by a client,
+       guarded by mLock */
+    private boolean mIsDataPreferredBySelection;
+    @VisibleForTesting
+    protected ArrayList<AvailableNetworkInfo> mAvailableNetworkInfos;
+    /* ONSSelectionPlan.fingerprint of mAvailableNetworkInfos */
+    private long mAvailableNetworksFingerprint;
     private IUpdateAvailableNetworksCallback mNetworkScanCallback;
+    /* elapsed realtime of the in-flight subscription switch, 0 if there is none */
+    private long mSwitchRequestTime;
+    /* cookie of the async trace track of the in-flight switch, 0 if none is open */
+    private int mSwitchTraceCookie;
+    /* elapsed realtime of the first scan result for the current request, 0 if none yet */
+    private long mFirstResultTime;
+    /* compiled plan of the current scan based selection, null if there is none */
+    @VisibleForTesting
+    protected ONSSelectionPlan mSelectionPlan;
+    /* plan of the finished selection whose sub is watched by mExitMonitor, null if none */
+    private ONSSelectionPlan mExitPlan;
+    private int mSelectionScanPriority;
+    @VisibleForTesting
+    protected ONSExitMonitor mExitMonitor;
+    @VisibleForTesting
+    protected ONSServiceHandle<ISub> mSubService = new ONSServiceHandle<>("isub",
+            ISub.Stub::asInterface, ONSMetrics.LATENCY_SET_PREFERRED_DATA);
+    /* recent selection decisions, reported through dumpsys */
+    private final LocalLog mDecisionLog = new LocalLog(MAX_DECISION_LOG_SIZE);
 
     public static final String ACTION_SUB_SWITCH =
             "android.intent.action.SUBSCRIPTION_SWITCH_REPLY";
@@ -104,6 +152,9 @@ public class ONSProfileSelector {
     HandlerThread mThread;
     @VisibleForTesting
     protected Handler mHandler;
+    /* messages queued on mHandler and not yet dispatched, and the highest value seen */
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
 
     /**
      * Network scan callback handler
@@ -113,7 +164,11 @@ public class ONSProfileSelector {
             new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
                 @Override
                 public void onNetworkAvailability(List<CellInfo> results) {
+                    if (mFirstResultTime == 0) {
+                        mFirstResultTime = SystemClock.elapsedRealtime();
+                    }
                     int subId = retrieveBestSubscription(results);
+                    mDecisionLog.log("scan results: " + results.size() + " best sub: " + subId);
                     if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
                         sendUpdateNetworksCallbackHelper(mNetworkScanCallback,
                                 TelephonyManager.UPDATE_AVAILABLE_NETWORKS_INVALID_ARGUMENTS);
@@ -131,6 +186,7 @@ public class ONSProfileSelector {
                 @Override
                 public void onError(int error) {
                     log("Network scan failed with error " + error);
+                    mDecisionLog.log("scan error " + error);
                     synchronized (mLock) {
                         if (mIsEnabled && mAvailableNetworkInfos != null
                             && mAvailableNetworkInfos.size() > 0) {
@@ -146,11 +202,17 @@ public class ONSProfileSelector {
                 }
 
                 private void handleNetworkScanResult(int subId) {
+                    if (mFirstResultTime != 0) {
+                        ONSMetrics.getInstance().recordLatencySince(
+                                ONSMetrics.LATENCY_FIRST_RESULT_TO_DECISION, mFirstResultTime);
+                        mFirstResultTime = 0;
+                    }
                     /* if subscription is already active, just enable modem */
                     if (mSubscriptionManager.isActiveSubId(subId)) {
                         if (enableModem(subId, true)) {
                             sendUpdateNetworksCallbackHelper(mNetworkScanCallback,
                                 TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+                            onSelectionDone(subId);
                         } else {
                             sendUpdateNetworksCallbackHelper(mNetworkScanCallback,
                                 TelephonyManager.UPDATE_AVAILABLE_NETWORKS_ABORTED);
@@ -159,6 +221,7 @@ public class ONSProfileSelector {
                         synchronized (mLock) {
                             mNetworkScanCallback = null;
                             mAvailableNetworkInfos = null;
+                            mSelectionPlan = null;
                         }
                     } else {
                         logDebug("switch to sub:" + subId);
@@ -189,24 +252,6 @@ public class ONSProfileSelector {
         void onProfileSelectionDone();
     }
 
-    class SortSubInfo implements Comparator<SubscriptionInfo>
-    {
-        // Used for sorting in ascending order of sub id
-        public int compare(SubscriptionInfo a, SubscriptionInfo b)
-        {
-            return a.getSubscriptionId() - b.getSubscriptionId();
-        }
-    }
-
-    class SortAvailableNetworks implements Comparator<AvailableNetworkInfo>
-    {
-        // Used for sorting in ascending order of sub id
-        public int compare(AvailableNetworkInfo a, AvailableNetworkInfo b)
-        {
-            return a.getSubId() - b.getSubId();
-        }
-    }
-
     class SortAvailableNetworksInPriority implements Comparator<AvailableNetworkInfo>
     {
         // Used for sorting in descending order of priority (ascending order of priority numbers)
@@ -255,17 +300,8 @@ public class ONSProfileSelector {
     private int getSubIdUsingAvailableNetworks(String mcc, String mnc, int priorityLevel) {
         String mccMnc = mcc + mnc;
         synchronized (mLock) {
-            if (mAvailableNetworkInfos != null) {
-                for (AvailableNetworkInfo availableNetworkInfo : mAvailableNetworkInfos) {
-                    if (availableNetworkInfo.getPriority() != priorityLevel) {
-                        continue;
-                    }
-                    for (String availableMccMnc : availableNetworkInfo.getMccMncs()) {
-                        if (TextUtils.equals(availableMccMnc, mccMnc)) {
-                            return availableNetworkInfo.getSubId();
-                        }
-                    }
-                }
+            if (mSelectionPlan != null) {
+                return mSelectionPlan.getSubId(mccMnc, priorityLevel);
             }
         }
 
@@ -325,6 +361,12 @@ public class ONSProfileSelector {
         callbackIntent.putExtra("sequenceId", mSequenceId);
         callbackIntent.putExtra("subId", subId);
         mSubId = subId;
+        endSwitchTrace();
+        mSwitchTraceCookie = mSequenceId;
+        ONSTrace.beginAsync(ONSTrace.TRACK_SUB_SWITCH, mSwitchTraceCookie);
+        mSwitchRequestTime = SystemClock.elapsedRealtime();
+        mDecisionLog.log("switch to sub " + subId + " sequenceId " + mSequenceId);
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SWITCH_REQUESTED);
         PendingIntent replyIntent = PendingIntent.getService(mContext,
                 1, callbackIntent, PendingIntent.FLAG_ONE_SHOT);
         mSubscriptionManager.switchToSubscription(subId, replyIntent);
@@ -348,16 +390,128 @@ public class ONSProfileSelector {
             return;
         }
 
+        if (mSwitchRequestTime != 0) {
+            ONSMetrics.getInstance().recordLatencySince(ONSMetrics.LATENCY_SWITCH,
+                    mSwitchRequestTime);
+            mSwitchRequestTime = 0;
+        }
+        endSwitchTrace();
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SWITCH_COMPLETED);
+        mDecisionLog.log("switch complete sub " + subId);
         if (enableModem(subId, true)) {
             sendUpdateNetworksCallbackHelper(mNetworkScanCallback,
                 TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+            onSelectionDone(subId);
         } else {
             sendUpdateNetworksCallbackHelper(mNetworkScanCallback,
                 TelephonyManager.UPDATE_AVAILABLE_NETWORKS_ABORTED);
         }
         mProfileSelectionCallback.onProfileSelectionDone();
-        mNetworkScanCallback = null;
-        mAvailableNetworkInfos = null;
+        synchronized (mLock) {
+            mNetworkScanCallback = null;
+            mAvailableNetworkInfos = null;
+            mSelectionPlan = null;
+        }
+    }
+
+    /* subId is active with its modem enabled, continue the selection pipeline */
+    private void onSelectionDone(int subId) {
+        startExitMonitor(subId);
+        if (isPreferDataAfterSelectionEnabled()) {
+            preferDataForSelection(subId);
+        }
+    }
+
+    @VisibleForTesting
+    protected boolean isPreferDataAfterSelectionEnabled() {
+        try {
+            return DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                    KEY_PREFER_DATA_AFTER_SELECTION, false);
+        } catch (SecurityException e) {
+            log("Could not read prefer data config " + e);
+            return false;
+        }
+    }
+
+    /* switch preferred data to subId with validation, overlapping the requester callback */
+    private void preferDataForSelection(int subId) {
+        long startTime = SystemClock.elapsedRealtime();
+        mDecisionLog.log("prefer data sub " + subId);
+        synchronized (mLock) {
+            mIsDataPreferredBySelection = setPreferredData(subId, true,
+                    new ISetOpportunisticDataCallback.Stub() {
+                @Override
+                public void onComplete(int result) {
+                    ONSMetrics.getInstance().recordLatencySince(
+                            ONSMetrics.LATENCY_SELECTION_TO_PREFERRED_DATA, startTime);
+                    mDecisionLog.log("prefer data sub " + subId + " result " + result);
+                }
+            });
+        }
+    }
+
+    /* start a new selection with plan, the subscription of the previous one is not watched */
+    private void replaceSelectionPlan(ONSSelectionPlan plan) {
+        synchronized (mLock) {
+            mExitMonitor.stop();
+            mExitPlan = null;
+            mSelectionPlan = plan;
+        }
+    }
+
+    /* watch the signal of subId if it was selected by a scan */
+    private void startExitMonitor(int subId) {
+        synchronized (mLock) {
+            if (mSelectionPlan != null) {
+                mExitPlan = mSelectionPlan;
+                mExitMonitor.start(subId);
+            }
+        }
+    }
+
+    /* leave subId for the primary subscription and look for the remaining candidates */
+    private void onExitTriggered(int subId) {
+        ONSSelectionPlan exitPlan;
+        synchronized (mLock) {
+            exitPlan = mExitPlan;
+            mExitPlan = null;
+        }
+        if (exitPlan == null || !exitPlan.containsSubId(subId)) {
+            /* the selection of subId was replaced since the monitor was started */
+            logDebug("ignore exit of sub " + subId + " outside the current plan");
+            return;
+        }
+        mDecisionLog.log("exit sub " + subId);
+        ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_EXIT_TRIGGERED);
+        /* disabling the opportunistic stack moves data back to the primary right away */
+        enableModem(subId, false);
+        /* a preference set by a client stays until the client changes it */
+        synchronized (mLock) {
+            if (mIsDataPreferredBySelection && mCurrentDataSubId == subId) {
+                setPreferredData(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, false, null);
+                mIsDataPreferredBySelection = false;
+            }
+        }
+        if (!mIsEnabled) {
+            return;
+        }
+        mSelectionPlan = exitPlan.without(subId);
+        if (mSelectionPlan == null) {
+            return;
+        }
+        mAvailableNetworkInfos = new ArrayList<>(mSelectionPlan.getAvailableNetworks());
+        mAvailableNetworksFingerprint = ONSSelectionPlan.fingerprint(mAvailableNetworkInfos);
+        mFirstResultTime = 0;
+        mDecisionLog.log("start scan for " + mAvailableNetworkInfos.size()
+                + " remaining networks");
+        mNetworkScanCtlr.startFastNetworkScan(mSelectionPlan, mSelectionScanPriority);
+    }
+
+    private void endSwitchTrace() {
+        if (mSwitchTraceCookie != 0) {
+            ONSTrace.endAsync(ONSTrace.TRACK_SUB_SWITCH, mSwitchTraceCookie);
+            mSwitchTraceCookie = 0;
+        }
     }
 
     private void updateToken() {
@@ -366,44 +520,71 @@ public class ONSProfileSelector {
         }
     }
 
-    private ArrayList<AvailableNetworkInfo> getFilteredAvailableNetworks(
-            ArrayList<AvailableNetworkInfo> availableNetworks,
+    @VisibleForTesting
+    protected ArrayList<AvailableNetworkInfo> getFilteredAvailableNetworks(
+            List<AvailableNetworkInfo> availableNetworks,
             List<SubscriptionInfo> subscriptionInfoList) {
+        return getFilteredAvailableNetworks(availableNetworks, getSubIds(subscriptionInfoList));
+    }
+
+    /**
+     * @return the networks of availableNetworks whose subscription is in subIds, in the order
+     *         of availableNetworks. Only the first network of each subscription is kept. Neither
+     *         argument is modified.
+     */
+    @VisibleForTesting
+    protected ArrayList<AvailableNetworkInfo> getFilteredAvailableNetworks(
+            List<AvailableNetworkInfo> availableNetworks, Set<Integer> subIds) {
         ArrayList<AvailableNetworkInfo> filteredAvailableNetworks =
                 new ArrayList<AvailableNetworkInfo>();
-
-        /* instead of checking each element of a list every element of the other, sort them in
-           the order of sub id and compare to improve the filtering performance. */
-        Collections.sort(subscriptionInfoList, new SortSubInfo());
-        Collections.sort(availableNetworks, new SortAvailableNetworks());
-        int availableNetworksIndex = 0;
-        int subscriptionInfoListIndex = 0;
-        SubscriptionInfo subscriptionInfo;
-        AvailableNetworkInfo availableNetwork;
-
-        while (availableNetworksIndex < availableNetworks.size()
-                && subscriptionInfoListIndex < subscriptionInfoList.size()) {
-            subscriptionInfo = subscriptionInfoList.get(subscriptionInfoListIndex);
-            availableNetwork = availableNetworks.get(availableNetworksIndex);
-            if (subscriptionInfo.getSubscriptionId() == availableNetwork.getSubId()) {
+        Set<Integer> matchedSubIds = new ArraySet<>();
+        for (int i = 0; i < availableNetworks.size(); i++) {
+            AvailableNetworkInfo availableNetwork = availableNetworks.get(i);
+            if (subIds.contains(availableNetwork.getSubId())
+                    && matchedSubIds.add(availableNetwork.getSubId())) {
                 filteredAvailableNetworks.add(availableNetwork);
-                subscriptionInfoListIndex++;
-                availableNetworksIndex++;
-            } else if (subscriptionInfo.getSubscriptionId() < availableNetwork.getSubId()) {
-                subscriptionInfoListIndex++;
-            } else {
-                availableNetworksIndex++;
             }
         }
         return filteredAvailableNetworks;
     }
 
-    private boolean isSame(ArrayList<AvailableNetworkInfo> availableNetworks1,
+    private static Set<Integer> getSubIds(List<SubscriptionInfo> subscriptionInfoList) {
+        Set<Integer> subIds = new ArraySet<>();
+        for (SubscriptionInfo subscriptionInfo : subscriptionInfoList) {
+            subIds.add(subscriptionInfo.getSubscriptionId());
+        }
+        return subIds;
+    }
+
+    @VisibleForTesting
+    protected boolean isSame(ArrayList<AvailableNetworkInfo> availableNetworks1,
             ArrayList<AvailableNetworkInfo> availableNetworks2) {
         if ((availableNetworks1 == null) || (availableNetworks2 == null)) {
             return false;
         }
-        return new HashSet<>(availableNetworks1).equals(new HashSet<>(availableNetworks2));
+        /* requests are a handful of networks, compare them as sets without hashing */
+        return containsAll(availableNetworks1, availableNetworks2)
+                && containsAll(availableNetworks2, availableNetworks1);
+    }
+
+    private static boolean containsAll(ArrayList<AvailableNetworkInfo> availableNetworks,
+            ArrayList<AvailableNetworkInfo> others) {
+        for (int i = 0; i < others.size(); i++) {
+            if (!availableNetworks.contains(others.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if availableNetworks with the given fingerprint is the active request
+     */
+    private boolean isDuplicateRequest(ArrayList<AvailableNetworkInfo> availableNetworks,
+            long fingerprint) {
+        /* the full comparison only runs when the fingerprints match */
+        return mAvailableNetworkInfos != null && fingerprint == mAvailableNetworksFingerprint
+                && isSame(availableNetworks, mAvailableNetworkInfos);
     }
 
     private boolean isPrimaryActiveOnOpportunisticSlot(
@@ -449,6 +630,7 @@ public class ONSProfileSelector {
                 (ArrayList<AvailableNetworkInfo>) objects[0];
         IUpdateAvailableNetworksCallback callbackStub =
                 (IUpdateAvailableNetworksCallback) objects[1];
+        int scanPriority = (int) objects[2];
         if (mOppSubscriptionInfos == null) {
             logDebug("null subscription infos");
             sendUpdateNetworksCallbackHelper(callbackStub,
@@ -464,8 +646,10 @@ public class ONSProfileSelector {
             return;
         }
 
-        if (isSame(availableNetworks, mAvailableNetworkInfos)) {
+        long fingerprint = ONSSelectionPlan.fingerprint(availableNetworks);
+        if (isDuplicateRequest(availableNetworks, fingerprint)) {
             logDebug("received duplicate requests");
+            mDecisionLog.log("duplicate request");
             /* If we receive same request more than once, send abort response for earlier one
                and send actual response for the latest callback.
             */
@@ -477,7 +661,9 @@ public class ONSProfileSelector {
 
         stopProfileScanningPrecedure();
         mIsEnabled = true;
+        mFirstResultTime = 0;
         mAvailableNetworkInfos = availableNetworks;
+        mAvailableNetworksFingerprint = fingerprint;
         /* sort in the order of priority */
         Collections.sort(mAvailableNetworkInfos, new SortAvailableNetworksInPriority());
         logDebug("availableNetworks: " + availableNetworks);
@@ -485,12 +671,12 @@ public class ONSProfileSelector {
         if (mOppSubscriptionInfos.size() > 0) {
             logDebug("opportunistic subscriptions size " + mOppSubscriptionInfos.size());
             ArrayList<AvailableNetworkInfo> filteredAvailableNetworks =
-                    getFilteredAvailableNetworks((ArrayList<AvailableNetworkInfo>)availableNetworks,
-                            mOppSubscriptionInfos);
+                    getFilteredAvailableNetworks(availableNetworks, mOppSubIds);
             if ((filteredAvailableNetworks.size() == 1)
                     && ((filteredAvailableNetworks.get(0).getMccMncs() == null)
                     || (filteredAvailableNetworks.get(0).getMccMncs().size() == 0))) {
                 /* if subscription is not active, activate the sub */
+                replaceSelectionPlan(null);
                 if (!mSubscriptionManager.isActiveSubId(filteredAvailableNetworks.get(0).getSubId())) {
                     mNetworkScanCallback = callbackStub;
                     switchToSubscription(filteredAvailableNetworks.get(0).getSubId());
@@ -498,6 +684,7 @@ public class ONSProfileSelector {
                     if (enableModem(filteredAvailableNetworks.get(0).getSubId(), true)) {
                         sendUpdateNetworksCallbackHelper(callbackStub,
                             TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+                        onSelectionDone(filteredAvailableNetworks.get(0).getSubId());
                     } else {
                         sendUpdateNetworksCallbackHelper(callbackStub,
                             TelephonyManager.UPDATE_AVAILABLE_NETWORKS_ABORTED);
@@ -507,8 +694,13 @@ public class ONSProfileSelector {
                 }
             } else {
                 mNetworkScanCallback = callbackStub;
+                replaceSelectionPlan(ONSNetworkScanCtlr.compileFastScanPlan(
+                        filteredAvailableNetworks));
+                mSelectionScanPriority = scanPriority;
                 /* start scan immediately */
-                mNetworkScanCtlr.startFastNetworkScan(filteredAvailableNetworks);
+                mDecisionLog.log("start scan for " + filteredAvailableNetworks.size()
+                        + " networks");
+                mNetworkScanCtlr.startFastNetworkScan(mSelectionPlan, scanPriority);
             }
         } else if (mOppSubscriptionInfos.size() == 0) {
             sendUpdateNetworksCallbackHelper(callbackStub,
@@ -535,7 +727,8 @@ public class ONSProfileSelector {
         return false;
     }
 
-    private int retrieveBestSubscription(List<CellInfo> results) {
+    @VisibleForTesting
+    protected int retrieveBestSubscription(List<CellInfo> results) {
         /* sort the results according to signal strength level */
         Collections.sort(results, new Comparator<CellInfo>() {
             @Override
@@ -620,7 +813,14 @@ public class ONSProfileSelector {
             return true;
         } */
 
-        return mSubscriptionBoundTelephonyManager.enableModemForSlot(phoneId, enable);
+        long startTime = SystemClock.elapsedRealtime();
+        boolean result = mSubscriptionBoundTelephonyManager.enableModemForSlot(phoneId, enable);
+        ONSMetrics.getInstance().recordLatencySince(ONSMetrics.LATENCY_ENABLE_MODEM, startTime);
+        if (!result) {
+            ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_ENABLE_MODEM_FAILED);
+        }
+        mDecisionLog.log("enable modem sub " + subId + " enable " + enable + " result " + result);
+        return result;
     }
 
     private void stopProfileScanningPrecedure() {
@@ -631,8 +831,11 @@ public class ONSProfileSelector {
                 mNetworkScanCallback = null;
             }
             mNetworkScanCtlr.stopNetworkScan();
+            mExitMonitor.stop();
 
             mAvailableNetworkInfos = null;
+            mSelectionPlan = null;
+            mExitPlan = null;
             mIsEnabled = false;
         }
     }
@@ -646,8 +849,7 @@ public class ONSProfileSelector {
         if (mOppSubscriptionInfos.size() > 0) {
             logDebug("opportunistic subscriptions size " + mOppSubscriptionInfos.size());
             ArrayList<AvailableNetworkInfo> filteredAvailableNetworks =
-                    getFilteredAvailableNetworks(
-                            (ArrayList<AvailableNetworkInfo>)availableNetworks, mOppSubscriptionInfos);
+                    getFilteredAvailableNetworks(availableNetworks, mOppSubIds);
             if (filteredAvailableNetworks.size() > 0) {
                 return true;
             }
@@ -675,11 +877,22 @@ public class ONSProfileSelector {
 
     public void startProfileSelection(ArrayList<AvailableNetworkInfo> availableNetworks,
             IUpdateAvailableNetworksCallback callbackStub) {
+        startProfileSelection(availableNetworks, callbackStub,
+                ONSScanBudgetGovernor.PRIORITY_SYSTEM);
+    }
+
+    /**
+     * start profile selection
+     * @param scanPriority requester priority for the scan budget, see
+     *        {@link ONSScanBudgetGovernor}
+     */
+    public void startProfileSelection(ArrayList<AvailableNetworkInfo> availableNetworks,
+            IUpdateAvailableNetworksCallback callbackStub, int scanPriority) {
         logDebug("startProfileSelection availableNetworks: " + availableNetworks);
         if (availableNetworks == null || availableNetworks.size() == 0) {
             return;
         }
-        Object[] objects = new Object[]{availableNetworks, callbackStub};
+        Object[] objects = new Object[]{availableNetworks, callbackStub, scanPriority};
         Message message = Message.obtain(mHandler, MSG_START_PROFILE_SELECTION, objects);
         message.sendToTarget();
     }
@@ -700,28 +913,33 @@ public class ONSProfileSelector {
      */
     public void selectProfileForData(int subId, boolean needValidation,
             ISetOpportunisticDataCallback callbackStub) {
+        synchronized (mLock) {
+            if (setPreferredData(subId, needValidation, callbackStub)) {
+                mIsDataPreferredBySelection = false;
+            }
+        }
+    }
+
+    /* returns true if the preferred data request was sent to the subscription service.
+       must be called with mLock held */
+    private boolean setPreferredData(int subId, boolean needValidation,
+            ISetOpportunisticDataCallback callbackStub) {
         if ((subId == SubscriptionManager.DEFAULT_SUBSCRIPTION_ID)
                 || (isOpprotunisticSub(subId) && mSubscriptionManager.isActiveSubId(subId))) {
-            ISub iSub = ISub.Stub.asInterface(ServiceManager.getService("isub"));
-            if (iSub == null) {
-                log("Could not get Subscription Service handle");
-                sendSetOpptCallbackHelper(callbackStub,
-                    TelephonyManager.SET_OPPORTUNISTIC_SUB_VALIDATION_FAILED);
-                return;
-            }
-            try {
-                iSub.setPreferredDataSubscriptionId(subId, needValidation, callbackStub);
-            } catch (RemoteException ex) {
+            if (!mSubService.call(iSub -> iSub.setPreferredDataSubscriptionId(subId,
+                    needValidation, callbackStub))) {
                 log("Could not connect to Subscription Service");
                 sendSetOpptCallbackHelper(callbackStub,
                         TelephonyManager.SET_OPPORTUNISTIC_SUB_VALIDATION_FAILED);
-                return;
+                return false;
             }
             mCurrentDataSubId = subId;
+            return true;
         } else {
             log("Inactive sub passed for preferred data " + subId);
             sendSetOpptCallbackHelper(callbackStub,
                     TelephonyManager.SET_OPPORTUNISTIC_SUB_INACTIVE_SUBSCRIPTION);
+            return false;
         }
     }
 
@@ -738,6 +956,69 @@ public class ONSProfileSelector {
         disableOpportunisticModem(callbackStub);
     }
 
+    /**
+     * @return number of messages waiting on the selector handler
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return highest number of messages that were waiting on the selector handler at once
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * dump profile selection state
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(LOG_TAG + ":");
+        synchronized (mLock) {
+            pw.println(" mIsEnabled=" + mIsEnabled);
+            pw.println(" mAvailableNetworkInfos=" + mAvailableNetworkInfos);
+            pw.println(" hasPendingCallback=" + (mNetworkScanCallback != null));
+            pw.println(" queueDepth=" + mQueueDepth.get() + " maxQueueDepth="
+                    + mMaxQueueDepth.get());
+            pw.println(" mCurrentDataSubId=" + mCurrentDataSubId);
+            pw.println(" mIsDataPreferredBySelection=" + mIsDataPreferredBySelection);
+            pw.println(" mSequenceId=" + mSequenceId + " mSubId=" + mSubId);
+            if (mSwitchRequestTime != 0) {
+                pw.println(" switch in flight for "
+                        + (SystemClock.elapsedRealtime() - mSwitchRequestTime) + "ms");
+            }
+            if (mOppSubscriptionInfos != null) {
+                pw.print(" opportunistic subs:");
+                for (SubscriptionInfo subscriptionInfo : mOppSubscriptionInfos) {
+                    pw.print(" " + subscriptionInfo.getSubscriptionId());
+                }
+                pw.println();
+            }
+        }
+        pw.println(" decision history:");
+        mDecisionLog.dump(fd, pw, args);
+        mExitMonitor.dump(pw);
+        mNetworkScanCtlr.dump(fd, pw, args);
+    }
+
+    /**
+     * restore and persist learned coverage through database, see
+     * {@link ONSNetworkScanCtlr#setCoverageDatabase}.
+     */
+    public void setCoverageDatabase(ONSCoverageDatabase database) {
+        mNetworkScanCtlr.setCoverageDatabase(database);
+    }
+
+    /**
+     * replace the clock and delayed message scheduling of the selector and its scan controller.
+     */
+    @VisibleForTesting
+    protected void setScheduler(ONSScheduler scheduler) {
+        mNetworkScanCtlr.setScheduler(scheduler);
+        mExitMonitor.setScheduler(scheduler);
+    }
+
     @VisibleForTesting
     protected void updateOpportunisticSubscriptions() {
         synchronized (mLock) {
@@ -745,6 +1026,7 @@ public class ONSProfileSelector {
                 .getOpportunisticSubscriptions().stream()
                 .filter(subInfo -> subInfo.isGroupDisabled() != true)
                 .collect(Collectors.toList());
+            mOppSubIds = getSubIds(mOppSubscriptionInfos);
         }
     }
 
@@ -784,6 +1066,29 @@ public class ONSProfileSelector {
         mThread = new HandlerThread(LOG_TAG);
         mThread.start();
         mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+                /* count before queueing so the message can not be dispatched uncounted */
+                int depth = mQueueDepth.incrementAndGet();
+                if (!super.sendMessageAtTime(msg, uptimeMillis)) {
+                    mQueueDepth.decrementAndGet();
+                    return false;
+                }
+                mMaxQueueDepth.accumulateAndGet(depth, Math::max);
+                return true;
+            }
+
+            @Override
+            public void dispatchMessage(Message msg) {
+                mQueueDepth.decrementAndGet();
+                ONSTrace.beginMessage(MSG_TRACE_NAMES, msg.what);
+                try {
+                    super.dispatchMessage(msg);
+                } finally {
+                    ONSTrace.endSection();
+                }
+            }
+
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
@@ -811,6 +1116,12 @@ public class ONSProfileSelector {
                 }
             }
         };
+        mExitMonitor = new ONSExitMonitor(mContext, mThread.getLooper(), mTelephonyManager,
+                subId -> {
+                    synchronized (mLock) {
+                        onExitTriggered(subId);
+                    }
+                });
         /* register for profile update events */
         mSubscriptionManager.addOnOpportunisticSubscriptionsChangedListener(
                 AsyncTask.SERIAL_EXECUTOR, mProfileChangeListener);
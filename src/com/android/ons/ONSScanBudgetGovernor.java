@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that caps the modem time spent in ONS network scans, across all requesters.
+ *
+ * The bucket holds up to the hourly budget and refills continuously at the budget per hour.
+ * Scans are charged their search time, at most what their priority can hold, when they start
+ * and the unused part of the charge is refunded when they are stopped early. A part of the bucket is reserved for carrier requests, so
+ * system requests can not starve the carrier of scan time. Requests that do not fit are told
+ * how long to wait instead. Not thread safe, callers synchronize.
+ */
+public class ONSScanBudgetGovernor {
+    /* requester priorities, higher may use the carrier reserve */
+    public static final int PRIORITY_SYSTEM = 0;
+    public static final int PRIORITY_CARRIER = 1;
+
+    public static final long DEFAULT_BUDGET_SECONDS_PER_HOUR = TimeUnit.MINUTES.toSeconds(10);
+    public static final int DEFAULT_CARRIER_RESERVE_PERCENT = 25;
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    /* bucket size in ms of scan time, no limit if 0 */
+    private final long mCapacityMs;
+    private final long mCarrierReserveMs;
+    /* tokens are kept in ms * HOUR_MS so refill at mCapacityMs per hour is exact */
+    private long mTokens;
+    private long mLastRefillTime;
+    /* ms charged for the last admitted scan */
+    private long mLastChargedMs;
+    private long mGrantedCount;
+    private long mDeferredCount;
+
+    /**
+     * @param budgetSecondsPerHour scan time allowed per hour, 0 or less for no limit
+     * @param carrierReservePercent part of the budget only carrier requests may use
+     * @param now current time in ms, the bucket starts full
+     */
+    public ONSScanBudgetGovernor(long budgetSecondsPerHour, int carrierReservePercent, long now) {
+        mCapacityMs = Math.max(0, TimeUnit.SECONDS.toMillis(budgetSecondsPerHour));
+        mCarrierReserveMs = mCapacityMs * Math.max(0, Math.min(100, carrierReservePercent)) / 100;
+        mTokens = mCapacityMs * HOUR_MS;
+        mLastRefillTime = now;
+    }
+
+    private void refill(long now) {
+        if (now > mLastRefillTime) {
+            long maxTokens = mCapacityMs * HOUR_MS;
+            long elapsed = now - mLastRefillTime;
+            /* a bucket empty for over an hour is full again, avoid overflowing on the way */
+            mTokens = elapsed >= HOUR_MS ? maxTokens
+                    : Math.min(maxTokens, mTokens + elapsed * mCapacityMs);
+        }
+        mLastRefillTime = now;
+    }
+
+    /**
+     * ask to start a scan and charge its cost if admitted.
+     * @param priority PRIORITY_SYSTEM or PRIORITY_CARRIER
+     * @param costMs longest time the scan may run
+     * @param now current time in ms
+     * @return 0 if the scan was admitted, else the time in ms after which to ask again
+     */
+    public long requestScan(int priority, long costMs, long now) {
+        if (mCapacityMs == 0) {
+            mLastChargedMs = 0;
+            mGrantedCount++;
+            return 0;
+        }
+        refill(now);
+        long reserve = priority >= PRIORITY_CARRIER ? 0 : mCarrierReserveMs;
+        long limit = mCapacityMs - reserve;
+        if (limit <= 0) {
+            /* the whole budget is reserved for carrier requests */
+            mDeferredCount++;
+            return HOUR_MS;
+        }
+        /* a scan longer than the priority can ever hold waits for a full bucket */
+        long cost = Math.min(costMs, limit) * HOUR_MS;
+        long available = mTokens - reserve * HOUR_MS;
+        if (available >= cost) {
+            mTokens -= cost;
+            mLastChargedMs = cost / HOUR_MS;
+            mGrantedCount++;
+            return 0;
+        }
+        mDeferredCount++;
+        return (cost - available + mCapacityMs - 1) / mCapacityMs;
+    }
+
+    /**
+     * @return scan time in ms charged for the last admitted scan, which may be less than its
+     * cost. Refunds for the scan must not exceed it.
+     */
+    public long getLastChargedMs() {
+        return mLastChargedMs;
+    }
+
+    /**
+     * give back scan time charged for but not used.
+     */
+    public void refund(long unusedMs, long now) {
+        if (mCapacityMs == 0 || unusedMs <= 0) {
+            return;
+        }
+        refill(now);
+        mTokens = Math.min(mCapacityMs * HOUR_MS, mTokens + unusedMs * HOUR_MS);
+    }
+
+    /**
+     * @return scan time in ms a carrier request could be granted now
+     */
+    public long getAvailableMs(long now) {
+        if (mCapacityMs == 0) {
+            return Long.MAX_VALUE;
+        }
+        refill(now);
+        return mTokens / HOUR_MS;
+    }
+
+    public long getCapacityMs() {
+        return mCapacityMs;
+    }
+
+    public long getCarrierReserveMs() {
+        return mCarrierReserveMs;
+    }
+
+    public long getGrantedCount() {
+        return mGrantedCount;
+    }
+
+    public long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /**
+     * dump budget state
+     */
+    public void dump(PrintWriter pw, long now) {
+        pw.println(" scanBudget capacityMs=" + mCapacityMs
+                + " carrierReserveMs=" + mCarrierReserveMs
+                + " availableMs=" + (mCapacityMs == 0 ? "unlimited" : getAvailableMs(now))
+                + " granted=" + mGrantedCount + " deferred=" + mDeferredCount);
+    }
+}
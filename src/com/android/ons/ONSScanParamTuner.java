@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.telephony.NetworkScanRequest;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the periodicity, search time and restart delay of each network scan.
+ *
+ * The search window holds a few sweeps of the requested bands and the period splits the window
+ * into those sweeps, but never drops below the fixed period of the untuned scan so that a short
+ * band list does not keep the radio busier than before. The window is widened when networks were
+ * recently found late in a scan. Carrier requests restart sooner, and restarts back off as the
+ * scan budget runs low. Search times stay within the limits telephony accepts for a scan
+ * request. Not thread safe, callers synchronize.
+ */
+public class ONSScanParamTuner {
+    /* modem time to sweep one LTE band */
+    @VisibleForTesting
+    protected static final int SWEEP_SECONDS_PER_BAND = 4;
+    /* sweeps a search window holds */
+    @VisibleForTesting
+    protected static final int SWEEPS_PER_WINDOW = 3;
+    /* shortest period chosen, the fast periodicity of the untuned scan */
+    @VisibleForTesting
+    protected static final int MIN_SEARCH_PERIODICITY_SEC = (int) TimeUnit.MINUTES.toSeconds(1);
+    /* longest search window chosen, well below what telephony would accept */
+    @VisibleForTesting
+    protected static final int MAX_SEARCH_TIME_SEC = (int) TimeUnit.MINUTES.toSeconds(5);
+    @VisibleForTesting
+    protected static final long DEFAULT_RESTART_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    /* recent times to first hit the window is derived from */
+    private static final int HISTORY_SIZE = 16;
+
+    private final long[] mTimesToFirstHitMs = new long[HISTORY_SIZE];
+    private int mHitCount;
+
+    /**
+     * Parameters of one scan.
+     */
+    public static final class Params {
+        public final int searchPeriodicitySec;
+        public final int maxSearchTimeSec;
+        /* idle time between the end of a scan and the next one */
+        public final long restartDelayMs;
+
+        public Params(int searchPeriodicitySec, int maxSearchTimeSec, long restartDelayMs) {
+            this.searchPeriodicitySec = searchPeriodicitySec;
+            this.maxSearchTimeSec = maxSearchTimeSec;
+            this.restartDelayMs = restartDelayMs;
+        }
+
+        @Override
+        public String toString() {
+            return "periodicity=" + searchPeriodicitySec + "s maxSearchTime=" + maxSearchTimeSec
+                    + "s restartDelay=" + restartDelayMs + "ms";
+        }
+    }
+
+    /**
+     * @param bandCount number of bands the scan sweeps
+     * @param priority requester priority, see {@link ONSScanBudgetGovernor}
+     * @param availableBudgetMs scan budget left, see {@link ONSScanBudgetGovernor#getAvailableMs}
+     * @param budgetCapacityMs scan budget capacity, 0 if unlimited
+     */
+    public Params tune(int bandCount, int priority, long availableBudgetMs,
+            long budgetCapacityMs) {
+        int sweepSec = clamp(bandCount * SWEEP_SECONDS_PER_BAND,
+                NetworkScanRequest.MIN_SEARCH_PERIODICITY_SEC,
+                NetworkScanRequest.MAX_SEARCH_PERIODICITY_SEC);
+
+        int maxSearchTimeSec = sweepSec * SWEEPS_PER_WINDOW;
+        long slowHitMs = getTimeToFirstHitPercentile(90);
+        if (slowHitMs > 0) {
+            /* leave room for networks that show up late */
+            maxSearchTimeSec = Math.max(maxSearchTimeSec,
+                    (int) TimeUnit.MILLISECONDS.toSeconds(2 * slowHitMs));
+        }
+        maxSearchTimeSec = clamp(maxSearchTimeSec, NetworkScanRequest.MIN_SEARCH_MAX_SEC,
+                MAX_SEARCH_TIME_SEC);
+
+        long restartDelayMs = DEFAULT_RESTART_DELAY_MS;
+        if (priority >= ONSScanBudgetGovernor.PRIORITY_CARRIER) {
+            restartDelayMs /= 2;
+        }
+        if (budgetCapacityMs > 0) {
+            if (availableBudgetMs * 4 < budgetCapacityMs) {
+                restartDelayMs *= 4;
+            } else if (availableBudgetMs * 2 < budgetCapacityMs) {
+                restartDelayMs *= 2;
+            }
+            /* do not ask for more than is left, the budget would only defer the scan */
+            maxSearchTimeSec = Math.max(NetworkScanRequest.MIN_SEARCH_MAX_SEC, Math.min(
+                    maxSearchTimeSec, (int) TimeUnit.MILLISECONDS.toSeconds(availableBudgetMs)));
+        }
+        int periodicitySec = Math.max(MIN_SEARCH_PERIODICITY_SEC,
+                Math.max(sweepSec, maxSearchTimeSec / SWEEPS_PER_WINDOW));
+        return new Params(Math.min(periodicitySec, maxSearchTimeSec), maxSearchTimeSec,
+                restartDelayMs);
+    }
+
+    /**
+     * record the time from the start of a scan to its first result for a requested network.
+     */
+    public void recordTimeToFirstHit(long timeMs) {
+        mTimesToFirstHitMs[mHitCount % HISTORY_SIZE] = timeMs;
+        mHitCount++;
+    }
+
+    /**
+     * @return percentile of the recent times to first hit in ms, 0 if none were recorded
+     */
+    @VisibleForTesting
+    protected long getTimeToFirstHitPercentile(int percent) {
+        int count = Math.min(mHitCount, HISTORY_SIZE);
+        if (count == 0) {
+            return 0;
+        }
+        long[] times = Arrays.copyOf(mTimesToFirstHitMs, count);
+        Arrays.sort(times);
+        return times[Math.min(count - 1, (count * percent + 99) / 100 - 1)];
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * dump tuner state
+     */
+    public void dump(PrintWriter pw) {
+        pw.println(" scanParamTuner hits=" + mHitCount + " p50TimeToFirstHitMs="
+                + getTimeToFirstHitPercentile(50) + " p90TimeToFirstHitMs="
+                + getTimeToFirstHitPercentile(90));
+    }
+}
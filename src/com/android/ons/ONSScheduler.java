@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Clock and delayed message scheduling used by the ONS handlers. Every timed message in ONS
+ * goes through this class, so tests can replace it with a virtual time implementation and
+ * step through minutes of scan restarts and debounce windows without waiting.
+ */
+public class ONSScheduler {
+    private static final ONSScheduler sDefault = new ONSScheduler();
+
+    /**
+     * @return the scheduler backed by the system clock and the handlers' own message queues
+     */
+    public static ONSScheduler getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return milliseconds since boot, including time spent in sleep
+     */
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return wall clock time in milliseconds, for state that must survive reboots
+     */
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * deliver msg to its target handler after delayMs.
+     */
+    public boolean sendMessageDelayed(Message msg, long delayMs) {
+        return msg.getTarget().sendMessageDelayed(msg, delayMs);
+    }
+
+    public boolean sendEmptyMessageDelayed(Handler handler, int what, long delayMs) {
+        return sendMessageDelayed(Message.obtain(handler, what), delayMs);
+    }
+
+    /**
+     * remove pending messages with code what for handler.
+     */
+    public void removeMessages(Handler handler, int what) {
+        handler.removeMessages(what);
+    }
+
+    public boolean hasMessages(Handler handler, int what) {
+        return handler.hasMessages(what);
+    }
+}
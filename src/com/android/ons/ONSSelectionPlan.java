@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.NetworkScanRequest;
+import android.telephony.RadioAccessSpecifier;
+import android.telephony.SubscriptionManager;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable selection plan compiled once from an accepted list of available networks.
+ *
+ * Holds the networks in priority order, an index of them by PLMN, the bands and PLMNs to scan
+ * and the network scan request, so scan restarts and result evaluation read them without
+ * rebuilding or allocating.
+ */
+public final class ONSSelectionPlan {
+    private final List<AvailableNetworkInfo> mAvailableNetworks;
+    /* networks listing each PLMN, in priority order */
+    private final Map<String, List<AvailableNetworkInfo>> mNetworksByMccMnc;
+    /* sorted */
+    private final int[] mBands;
+    private final Set<Integer> mSubIds;
+    private final List<String> mMccMncs;
+    private final NetworkScanRequest mScanRequest;
+
+    private ONSSelectionPlan(List<AvailableNetworkInfo> availableNetworks,
+            Map<String, List<AvailableNetworkInfo>> networksByMccMnc, int[] bands,
+            Set<Integer> subIds, List<String> mccMncs, NetworkScanRequest scanRequest) {
+        mAvailableNetworks = availableNetworks;
+        mNetworksByMccMnc = networksByMccMnc;
+        mBands = bands;
+        mSubIds = subIds;
+        mMccMncs = mccMncs;
+        mScanRequest = scanRequest;
+    }
+
+    /**
+     * compile a plan scanning for availableNetworks, which is not modified.
+     * @param searchPeriodicity periodicity of the scan request in seconds
+     * @param maxSearchTime maximum search time of the scan request in seconds
+     */
+    public static ONSSelectionPlan compile(List<AvailableNetworkInfo> availableNetworks,
+            int searchPeriodicity, int maxSearchTime) {
+        ArrayList<AvailableNetworkInfo> networks = new ArrayList<>(availableNetworks);
+        /* stable, networks of equal priority keep the requester's order */
+        Collections.sort(networks, Comparator.comparingInt(AvailableNetworkInfo::getPriority));
+
+        ArrayList<String> mccMncs = new ArrayList<>();
+        Set<Integer> bandSet = new ArraySet<>();
+        Set<Integer> subIds = new ArraySet<>();
+        Map<String, List<AvailableNetworkInfo>> networksByMccMnc = new HashMap<>();
+        /* by default add band 48 */
+        bandSet.add(AccessNetworkConstants.EutranBand.BAND_48);
+        for (AvailableNetworkInfo availableNetwork : networks) {
+            subIds.add(availableNetwork.getSubId());
+            bandSet.addAll(availableNetwork.getBands());
+            for (String mccMnc : availableNetwork.getMccMncs()) {
+                List<AvailableNetworkInfo> networksForMccMnc = networksByMccMnc.get(mccMnc);
+                if (networksForMccMnc == null) {
+                    networksForMccMnc = new ArrayList<>();
+                    networksByMccMnc.put(mccMnc, networksForMccMnc);
+                }
+                networksForMccMnc.add(availableNetwork);
+            }
+        }
+        /* scan PLMNs in the requester's order */
+        for (AvailableNetworkInfo availableNetwork : availableNetworks) {
+            mccMncs.addAll(availableNetwork.getMccMncs());
+        }
+        for (Map.Entry<String, List<AvailableNetworkInfo>> entry : networksByMccMnc.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        int[] bands = bandSet.stream().mapToInt(band -> band).sorted().toArray();
+        NetworkScanRequest scanRequest = createScanRequest(bands, searchPeriodicity,
+                maxSearchTime, false, mccMncs);
+        return new ONSSelectionPlan(Collections.unmodifiableList(networks),
+                Collections.unmodifiableMap(networksByMccMnc), bands,
+                Collections.unmodifiableSet(subIds), Collections.unmodifiableList(mccMncs),
+                scanRequest);
+    }
+
+    private static NetworkScanRequest createScanRequest(int[] bands, int searchPeriodicity,
+            int maxSearchTime, boolean incrementalResults, ArrayList<String> mccMncs) {
+        RadioAccessSpecifier[] ras = new RadioAccessSpecifier[1];
+        ras[0] = new RadioAccessSpecifier(AccessNetworkConstants.AccessNetworkType.EUTRAN, bands,
+                null);
+        return new NetworkScanRequest(NetworkScanRequest.SCAN_TYPE_PERIODIC, ras,
+                searchPeriodicity, maxSearchTime, incrementalResults,
+                NetworkScanRequest.MAX_INCREMENTAL_PERIODICITY_SEC, mccMncs);
+    }
+
+    /**
+     * @return order independent 64 bit fingerprint of the subscription ids, priorities, PLMNs
+     *         and bands of availableNetworks. Equal requests have equal fingerprints, a request
+     *         listing the same network twice differs from one listing it once.
+     */
+    public static long fingerprint(List<AvailableNetworkInfo> availableNetworks) {
+        long fingerprint = 0;
+        for (int i = 0; i < availableNetworks.size(); i++) {
+            /* summing keeps the fingerprint independent of the network order */
+            fingerprint += mix(hashNetwork(availableNetworks.get(i)));
+        }
+        return fingerprint;
+    }
+
+    /* FNV-1a over the fields AvailableNetworkInfo.equals compares */
+    private static long hashNetwork(AvailableNetworkInfo availableNetwork) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ availableNetwork.getSubId()) * 0x100000001b3L;
+        hash = (hash ^ availableNetwork.getPriority()) * 0x100000001b3L;
+        List<String> mccMncs = availableNetwork.getMccMncs();
+        if (mccMncs != null) {
+            for (int i = 0; i < mccMncs.size(); i++) {
+                String mccMnc = mccMncs.get(i);
+                for (int j = 0; j < mccMnc.length(); j++) {
+                    hash = (hash ^ mccMnc.charAt(j)) * 0x100000001b3L;
+                }
+                /* separator, so "31021" "0" differs from "310210" */
+                hash = (hash ^ 0xff) * 0x100000001b3L;
+            }
+        }
+        List<Integer> bands = availableNetwork.getBands();
+        if (bands != null) {
+            for (int i = 0; i < bands.size(); i++) {
+                hash = (hash ^ bands.get(i)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /* 64 bit finalizer of SplitMix64, spreads the network hashes before they are summed */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * @return plan for the same request without the networks of subId, null if none remain
+     */
+    public ONSSelectionPlan without(int subId) {
+        ArrayList<AvailableNetworkInfo> remaining = new ArrayList<>();
+        for (AvailableNetworkInfo availableNetwork : mAvailableNetworks) {
+            if (availableNetwork.getSubId() != subId) {
+                remaining.add(availableNetwork);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return null;
+        }
+        return compile(remaining, mScanRequest.getSearchPeriodicity(),
+                mScanRequest.getMaxSearchTime());
+    }
+
+    /**
+     * @return networks in priority order
+     */
+    public List<AvailableNetworkInfo> getAvailableNetworks() {
+        return mAvailableNetworks;
+    }
+
+    /**
+     * @return first subscription in priority order listing mccMnc with the given priority,
+     *         INVALID_SUBSCRIPTION_ID if there is none
+     */
+    public int getSubId(String mccMnc, int priority) {
+        List<AvailableNetworkInfo> networks = mNetworksByMccMnc.get(mccMnc);
+        if (networks != null) {
+            for (int i = 0; i < networks.size(); i++) {
+                AvailableNetworkInfo availableNetwork = networks.get(i);
+                if (availableNetwork.getPriority() == priority) {
+                    return availableNetwork.getSubId();
+                }
+            }
+        }
+        return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    }
+
+    public boolean containsSubId(int subId) {
+        return mSubIds.contains(subId);
+    }
+
+    public Set<Integer> getSubIds() {
+        return mSubIds;
+    }
+
+    public boolean containsBand(int band) {
+        return Arrays.binarySearch(mBands, band) >= 0;
+    }
+
+    /**
+     * @return the bands to scan, in ascending order
+     */
+    public int[] getBands() {
+        return mBands.clone();
+    }
+
+    /**
+     * @return the PLMNs to scan
+     */
+    public List<String> getMccMncs() {
+        return mMccMncs;
+    }
+
+    public NetworkScanRequest getScanRequest() {
+        return mScanRequest;
+    }
+
+    /**
+     * @return scan request for the PLMNs of this plan on bands, which must be a subset of
+     *         {@link #getBands}
+     * @param searchPeriodicity periodicity of the scan request in seconds
+     * @param maxSearchTime maximum search time of the scan request in seconds
+     * @param incrementalResults whether the modem reports results as it finds them
+     */
+    public NetworkScanRequest createScanRequest(int[] bands, int searchPeriodicity,
+            int maxSearchTime, boolean incrementalResults) {
+        return createScanRequest(bands, searchPeriodicity, maxSearchTime, incrementalResults,
+                new ArrayList<>(mMccMncs));
+    }
+
+    public int getBandCount() {
+        return mBands.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ONSSelectionPlan: " + mAvailableNetworks;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.function.Function;
+
+/**
+ * Cached handle to a system service binder interface.
+ *
+ * The service is looked up on first use and kept until its process dies, which is detected
+ * through a death recipient, or a call fails with a RemoteException. The next call then looks
+ * the service up again. Every call is timed into an {@link ONSMetrics} latency histogram.
+ */
+public class ONSServiceHandle<T extends IInterface> {
+    private static final String LOG_TAG = "ONSServiceHandle";
+
+    private final Object mLock = new Object();
+    private final String mServiceName;
+    private final Function<String, IBinder> mServiceLookup;
+    private final Function<IBinder, T> mAsInterface;
+    private final int mLatencyHistogram;
+    private T mService;
+    private IBinder mBinder;
+    private int mConnectCount;
+
+    private final IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            log(mServiceName + " died");
+            ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_SERVICE_DIED);
+            synchronized (mLock) {
+                mService = null;
+                mBinder = null;
+            }
+        }
+    };
+
+    /**
+     * A binder call on the service.
+     */
+    public interface RemoteCall<T> {
+        void call(T service) throws RemoteException;
+    }
+
+    /**
+     * @param serviceName name the service is registered with in ServiceManager
+     * @param asInterface Stub.asInterface of the service interface
+     * @param latencyHistogram one of the ONSMetrics LATENCY_ constants
+     */
+    public ONSServiceHandle(String serviceName, Function<IBinder, T> asInterface,
+            int latencyHistogram) {
+        this(serviceName, ServiceManager::getService, asInterface, latencyHistogram);
+    }
+
+    @VisibleForTesting
+    protected ONSServiceHandle(String serviceName, Function<String, IBinder> serviceLookup,
+            Function<IBinder, T> asInterface, int latencyHistogram) {
+        mServiceName = serviceName;
+        mServiceLookup = serviceLookup;
+        mAsInterface = asInterface;
+        mLatencyHistogram = latencyHistogram;
+    }
+
+    /**
+     * @return the service, looking it up if needed, null if it is not available
+     */
+    public T get() {
+        synchronized (mLock) {
+            if (mService != null) {
+                return mService;
+            }
+            IBinder binder = mServiceLookup.apply(mServiceName);
+            if (binder == null) {
+                return null;
+            }
+            try {
+                binder.linkToDeath(mDeathRecipient, 0);
+            } catch (RemoteException e) {
+                log(mServiceName + " died before it could be linked");
+                return null;
+            }
+            mBinder = binder;
+            mService = mAsInterface.apply(binder);
+            mConnectCount++;
+            return mService;
+        }
+    }
+
+    /**
+     * run remoteCall on the service.
+     * @return false if the service is not available or the call failed
+     */
+    public boolean call(RemoteCall<T> remoteCall) {
+        T service = get();
+        if (service == null) {
+            log("could not get " + mServiceName);
+            return false;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            remoteCall.call(service);
+            return true;
+        } catch (RemoteException e) {
+            log("call to " + mServiceName + " failed " + e);
+            invalidate(service);
+            return false;
+        } finally {
+            ONSMetrics.getInstance().recordLatencySince(mLatencyHistogram, startTime);
+        }
+    }
+
+    /* drop service so the next call reconnects, unless it was replaced already */
+    private void invalidate(T service) {
+        synchronized (mLock) {
+            if (mService != service) {
+                return;
+            }
+            mBinder.unlinkToDeath(mDeathRecipient, 0);
+            mService = null;
+            mBinder = null;
+        }
+    }
+
+    /**
+     * @return number of times the service was looked up and linked
+     */
+    public int getConnectCount() {
+        synchronized (mLock) {
+            return mConnectCount;
+        }
+    }
+
+    @VisibleForTesting
+    protected IBinder.DeathRecipient getDeathRecipient() {
+        return mDeathRecipient;
+    }
+
+    private static void log(String msg) {
+        Rlog.d(LOG_TAG, msg);
+    }
+}
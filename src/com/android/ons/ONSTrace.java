@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ons;
+
+import android.os.Trace;
+
+/**
+ * Systrace helpers for ONS. Section names are constants so nothing is built or allocated
+ * while tracing is disabled; Trace itself returns early when the tag is off.
+ */
+public final class ONSTrace {
+    private static final long TRACE_TAG = Trace.TRACE_TAG_RIL;
+
+    /* async tracks */
+    public static final String TRACK_NETWORK_SCAN = "ONS network scan";
+    public static final String TRACK_SUB_SWITCH = "ONS subscription switch";
+
+    private ONSTrace() {
+    }
+
+    /**
+     * begin a section for a handler message.
+     * @param names section name per message, indexed by {@link android.os.Message#what}
+     * @param what message being processed
+     */
+    public static void beginMessage(String[] names, int what) {
+        if (!Trace.isTagEnabled(TRACE_TAG)) {
+            return;
+        }
+        Trace.traceBegin(TRACE_TAG,
+                (what >= 0 && what < names.length && names[what] != null) ? names[what] : names[0]);
+    }
+
+    public static void endSection() {
+        Trace.traceEnd(TRACE_TAG);
+    }
+
+    public static void beginAsync(String track, int cookie) {
+        Trace.asyncTraceBegin(TRACE_TAG, track, cookie);
+    }
+
+    public static void endAsync(String track, int cookie) {
+        Trace.asyncTraceEnd(TRACE_TAG, track, cookie);
+    }
+}
@@ -23,12 +23,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.telephony.AvailableNetworkInfo;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionInfo;
@@ -41,10 +44,16 @@ import com.android.internal.telephony.ISetOpportunisticDataCallback;
 import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.TelephonyPermissions;
+import com.android.internal.util.DumpUtils;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * OpportunisticNetworkService implements ions.
@@ -58,19 +67,35 @@ public class OpportunisticNetworkService extends Service {
 
     private final Object mLock = new Object();
     @VisibleForTesting protected boolean mIsEnabled;
-    private ONSProfileSelector mProfileSelector;
+    @VisibleForTesting protected ONSProfileSelector mProfileSelector;
     private SharedPreferences mSharedPref;
     @VisibleForTesting protected HashMap<String, ONSConfigInput> mONSConfigInputHashMap;
+    /* active subscriptions and carrier input seen by the last SIM state evaluation */
+    private Set<Integer> mLastEvaluatedSubIds;
+    private ONSConfigInput mLastEvaluatedConfigInput;
+    private long mSimStateChangePendingSince;
+    private ONSScheduler mScheduler = ONSScheduler.getDefault();
+    private ONSCoverageDatabase mCoverageDatabase;
 
     private static final String TAG = "ONS";
     private static final String PREF_NAME = TAG;
     private static final String PREF_ENABLED = "isEnabled";
+    private static final String PREF_CONFIG_INPUT_PREFIX = "configInput_";
     private static final String SERVICE_NAME = "ions";
     private static final String CARRIER_APP_CONFIG_NAME = "carrierApp";
     private static final String SYSTEM_APP_CONFIG_NAME = "systemApp";
     private static final boolean DBG = true;
     /* message to indicate sim state update */
     private static final int MSG_SIM_STATE_CHANGE = 1;
+    /* quiet period used to coalesce bursts of SIM state change broadcasts */
+    private static final int SIM_STATE_CHANGE_DEBOUNCE_MS = 500;
+    /* upper bound on how long a burst of broadcasts can postpone the evaluation */
+    private static final int SIM_STATE_CHANGE_MAX_DELAY_MS = 3000;
+    /* trace section per message, indexed by message id */
+    private static final String[] MSG_TRACE_NAMES = {
+            "ONS:unknown",
+            "ONS:simStateChange",
+    };
 
     /**
      * Profile selection callback. Will be called once Profile selector decides on
@@ -89,11 +114,39 @@ public class OpportunisticNetworkService extends Service {
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mHandler.sendEmptyMessage(MSG_SIM_STATE_CHANGE);
+            scheduleSimStateChange();
         }
     };
 
+    /**
+     * Debounce SIM state change events. Broadcasts arrive in bursts during boot, hot swap and
+     * eSIM switches; restart the quiet period on every event so that the burst is evaluated
+     * once, but never postpone the evaluation beyond SIM_STATE_CHANGE_MAX_DELAY_MS.
+     */
+    private void scheduleSimStateChange() {
+        long now = mScheduler.elapsedRealtime();
+        if (!mScheduler.hasMessages(mHandler, MSG_SIM_STATE_CHANGE)) {
+            mSimStateChangePendingSince = now;
+        } else if (now - mSimStateChangePendingSince >= SIM_STATE_CHANGE_MAX_DELAY_MS) {
+            /* pending evaluation will pick up this event as well */
+            return;
+        }
+        mScheduler.removeMessages(mHandler, MSG_SIM_STATE_CHANGE);
+        mScheduler.sendEmptyMessageDelayed(mHandler, MSG_SIM_STATE_CHANGE,
+                SIM_STATE_CHANGE_DEBOUNCE_MS);
+    }
+
     private Handler mHandler = new Handler() {
+        @Override
+        public void dispatchMessage(Message msg) {
+            ONSTrace.beginMessage(MSG_TRACE_NAMES, msg.what);
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                ONSTrace.endSection();
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -127,19 +180,33 @@ public class OpportunisticNetworkService extends Service {
         }
         List<SubscriptionInfo> subscriptionInfos =
             mSubscriptionManager.getActiveSubscriptionInfoList(false);
-        for (SubscriptionInfo subscriptionInfo : subscriptionInfos) {
-            if (subscriptionInfo.getSubscriptionId() == carrierAppConfigInput.getPrimarySub()) {
-                return;
+        Set<Integer> activeSubIds = new HashSet<>();
+        if (subscriptionInfos != null) {
+            for (SubscriptionInfo subscriptionInfo : subscriptionInfos) {
+                activeSubIds.add(subscriptionInfo.getSubscriptionId());
             }
         }
 
+        /* nothing changed since the last evaluation of the same carrier request */
+        if (carrierAppConfigInput == mLastEvaluatedConfigInput
+                && activeSubIds.equals(mLastEvaluatedSubIds)) {
+            logDebug("active subscriptions unchanged, skipping evaluation");
+            return;
+        }
+        mLastEvaluatedConfigInput = carrierAppConfigInput;
+        mLastEvaluatedSubIds = activeSubIds;
+
+        if (activeSubIds.contains(carrierAppConfigInput.getPrimarySub())) {
+            return;
+        }
+
         logDebug("Carrier subscription is not available, removing entry");
-        mONSConfigInputHashMap.put(CARRIER_APP_CONFIG_NAME, null);
+        updateConfigInput(CARRIER_APP_CONFIG_NAME, null);
         if (!mIsEnabled) {
             return;
         }
         if (mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME) != null) {
-            mProfileSelector.startProfileSelection(
+            getProfileSelector().startProfileSelection(
                     mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME).getAvailableNetworkInfos(),
                     mONSConfigInputHashMap.get(
                             SYSTEM_APP_CONFIG_NAME).getAvailableNetworkCallback());
@@ -149,10 +216,23 @@ public class OpportunisticNetworkService extends Service {
     private boolean hasOpportunisticSubPrivilege(String callingPackage, int subId) {
         return mTelephonyManager.hasCarrierPrivileges(subId)
                 || mSubscriptionManager.canManageSubscription(
-                mProfileSelector.getOpprotunisticSubInfo(subId), callingPackage);
+                getProfileSelector().getOpprotunisticSubInfo(subId), callingPackage);
     }
 
     private final IOns.Stub mBinder = new IOns.Stub() {
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                return super.onTransact(code, data, reply, flags);
+            } finally {
+                ONSMetrics.getInstance().incrementCounter(ONSMetrics.COUNTER_BINDER_CALL);
+                ONSMetrics.getInstance().recordLatencySince(ONSMetrics.LATENCY_BINDER_CALL,
+                        startTime);
+            }
+        }
+
         /**
          * Enable or disable Opportunistic Network service.
          *
@@ -231,7 +311,11 @@ public class OpportunisticNetworkService extends Service {
                             "setPreferredDataSubscriptionId");
                 }
             } else {
-                if (mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) != null) {
+                boolean hasCarrierRequest;
+                synchronized (mLock) {
+                    hasCarrierRequest = mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) != null;
+                }
+                if (hasCarrierRequest) {
                     sendSetOpptCallbackHelper(callbackStub,
                         TelephonyManager.SET_OPPORTUNISTIC_SUB_VALIDATION_FAILED);
                     return;
@@ -241,7 +325,7 @@ public class OpportunisticNetworkService extends Service {
 
             final long identity = Binder.clearCallingIdentity();
             try {
-                mProfileSelector.selectProfileForData(subId, needValidation, callbackStub);
+                getProfileSelector().selectProfileForData(subId, needValidation, callbackStub);
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -266,7 +350,7 @@ public class OpportunisticNetworkService extends Service {
                             callingPackage, "getPreferredDataSubscriptionId");
             final long identity = Binder.clearCallingIdentity();
             try {
-                return mProfileSelector.getPreferredDataSubscriptionId();
+                return getProfileSelector().getPreferredDataSubscriptionId();
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -292,6 +376,7 @@ public class OpportunisticNetworkService extends Service {
         public void updateAvailableNetworks(List<AvailableNetworkInfo> availableNetworks,
                 IUpdateAvailableNetworksCallback callbackStub, String callingPackage) {
             logDebug("updateAvailableNetworks: " + availableNetworks);
+            callbackStub = measureCallbackLatency(callbackStub);
             /* check if system app */
             if (enforceModifyPhoneStatePermission(mContext)) {
                 handleSystemAppAvailableNetworks(
@@ -320,6 +405,9 @@ public class OpportunisticNetworkService extends Service {
         if (ServiceManager.getService(SERVICE_NAME) == null) {
             ServiceManager.addService(SERVICE_NAME, mBinder);
         }
+
+        /* bring up the remaining components off the boot critical path */
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> completeInitialization());
     }
 
     @Override
@@ -345,32 +433,145 @@ public class OpportunisticNetworkService extends Service {
         return START_STICKY;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) {
+            return;
+        }
+        pw.println("OpportunisticNetworkService:");
+        synchronized (mLock) {
+            pw.println(" mIsEnabled=" + mIsEnabled);
+            if (mONSConfigInputHashMap != null) {
+                pw.println(" " + CARRIER_APP_CONFIG_NAME + "="
+                        + mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME));
+                pw.println(" " + SYSTEM_APP_CONFIG_NAME + "="
+                        + mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME));
+            }
+            if (mProfileSelector != null) {
+                mProfileSelector.dump(fd, pw, args);
+            } else {
+                pw.println(" profile selector not initialized");
+            }
+            if (mCoverageDatabase != null) {
+                mCoverageDatabase.dump(pw);
+            }
+        }
+        ONSMetrics.getInstance().dump(fd, pw, args);
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+        synchronized (mLock) {
+            if (mCoverageDatabase != null) {
+                mCoverageDatabase.close();
+                mCoverageDatabase = null;
+            }
+        }
         log("Destroyed Successfully...");
 
     }
 
     /**
-     * initialize ONS and register as service.
-     * Read persistent state to update enable state
-     * Start sub components if already enabled.
+     * initialize ONS.
+     * Only the state needed to serve binder calls is set up here, including the persistent
+     * enable state. Profile selector, scan controller and subscription loading are deferred
+     * to {@link #completeInitialization()} or the first request, whichever comes first.
      * @param context context instance
      */
     @VisibleForTesting
     protected void initialize(Context context) {
         mContext = context;
         mTelephonyManager = TelephonyManager.from(mContext);
-        mProfileSelector = new ONSProfileSelector(mContext, mProfileSelectionCallback);
         mSharedPref = mContext.createDeviceProtectedStorageContext().getSharedPreferences(
                 PREF_NAME, Context.MODE_PRIVATE);
         mSubscriptionManager = (SubscriptionManager) mContext.getSystemService(
                 Context.TELEPHONY_SUBSCRIPTION_SERVICE);
         mONSConfigInputHashMap = new HashMap<String, ONSConfigInput>();
+        mIsEnabled = getPersistentEnableState();
         mContext.registerReceiver(mBroadcastReceiver,
             new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
-        enableOpportunisticNetwork(getPersistentEnableState());
+    }
+
+    /**
+     * second initialization stage, run in background after the service is registered.
+     * Creates the profile selector, opens the coverage database, restores learned coverage and
+     * requests from before process death and restarts scanning for them if enabled.
+     */
+    @VisibleForTesting
+    protected void completeInitialization() {
+        synchronized (mLock) {
+            getProfileSelector();
+            /* file I/O, kept off the main thread with the rest of the deferred work */
+            mCoverageDatabase = ONSCoverageDatabase.open(new File(
+                    mContext.createDeviceProtectedStorageContext().getFilesDir(),
+                    ONSCoverageDatabase.FILE_NAME), AsyncTask.SERIAL_EXECUTOR);
+            if (mCoverageDatabase != null) {
+                mProfileSelector.setCoverageDatabase(mCoverageDatabase);
+            }
+            restorePersistentConfigInputs();
+            if (mIsEnabled) {
+                startProfileSelectionForConfigInputs();
+            }
+        }
+    }
+
+    /**
+     * get the profile selector, creating it on first use.
+     */
+    @VisibleForTesting
+    protected ONSProfileSelector getProfileSelector() {
+        synchronized (mLock) {
+            if (mProfileSelector == null) {
+                mProfileSelector = new ONSProfileSelector(mContext, mProfileSelectionCallback);
+                mProfileSelector.setScheduler(mScheduler);
+            }
+            return mProfileSelector;
+        }
+    }
+
+    /**
+     * replace the clock and delayed message scheduling of the service and its profile selector.
+     */
+    @VisibleForTesting
+    protected void setScheduler(ONSScheduler scheduler) {
+        synchronized (mLock) {
+            mScheduler = scheduler;
+            if (mProfileSelector != null) {
+                mProfileSelector.setScheduler(scheduler);
+            }
+        }
+    }
+
+    /**
+     * update the request of the given requester and persist it, must be called with mLock held.
+     * @param configName CARRIER_APP_CONFIG_NAME or SYSTEM_APP_CONFIG_NAME
+     * @param onsConfigInput new request or null if the requester has none
+     */
+    private void updateConfigInput(String configName, ONSConfigInput onsConfigInput) {
+        mONSConfigInputHashMap.put(configName, onsConfigInput);
+        SharedPreferences.Editor editor = mSharedPref.edit();
+        if (onsConfigInput == null) {
+            editor.remove(PREF_CONFIG_INPUT_PREFIX + configName);
+        } else {
+            editor.putString(PREF_CONFIG_INPUT_PREFIX + configName,
+                    onsConfigInput.toPersistentString());
+        }
+        /* apply() commits to disk asynchronously */
+        editor.apply();
+    }
+
+    /* must be called with mLock held */
+    private void restorePersistentConfigInputs() {
+        for (String configName : new String[]{CARRIER_APP_CONFIG_NAME, SYSTEM_APP_CONFIG_NAME}) {
+            ONSConfigInput onsConfigInput = ONSConfigInput.fromPersistentString(
+                    mSharedPref.getString(PREF_CONFIG_INPUT_PREFIX + configName, null));
+            /* requests received since startup take precedence over persisted ones */
+            if (onsConfigInput != null && !mONSConfigInputHashMap.containsKey(configName)) {
+                logDebug("restored " + configName + " " + onsConfigInput);
+                mONSConfigInputHashMap.put(configName, onsConfigInput);
+            }
+        }
     }
 
     private void handleCarrierAppAvailableNetworks(
@@ -385,7 +586,7 @@ public class OpportunisticNetworkService extends Service {
                 return;
             }
 
-            if (!mProfileSelector.hasOpprotunisticSub(availableNetworks)) {
+            if (!getProfileSelector().hasOpprotunisticSub(availableNetworks)) {
                 log("No opportunistic subscriptions received");
                 sendUpdateNetworksCallbackHelper(callbackStub,
                         TelephonyManager.UPDATE_AVAILABLE_NETWORKS_INVALID_ARGUMENTS);
@@ -412,15 +613,20 @@ public class OpportunisticNetworkService extends Service {
 
             final long identity = Binder.clearCallingIdentity();
             try {
-                ONSConfigInput onsConfigInput = new ONSConfigInput(availableNetworks, callbackStub);
-                onsConfigInput.setPrimarySub(
-                        mSubscriptionManager.getDefaultVoiceSubscriptionInfo().getSubscriptionId());
-                onsConfigInput.setPreferredDataSub(availableNetworks.get(0).getSubId());
-                mONSConfigInputHashMap.put(CARRIER_APP_CONFIG_NAME, onsConfigInput);
-
-                if (mIsEnabled) {
-                    /*  if carrier is reporting availability, then it takes higher priority. */
-                    mProfileSelector.startProfileSelection(availableNetworks, callbackStub);
+                synchronized (mLock) {
+                    ONSConfigInput onsConfigInput = new ONSConfigInput(availableNetworks,
+                            callbackStub);
+                    onsConfigInput.setPrimarySub(
+                            mSubscriptionManager.getDefaultVoiceSubscriptionInfo()
+                                    .getSubscriptionId());
+                    onsConfigInput.setPreferredDataSub(availableNetworks.get(0).getSubId());
+                    updateConfigInput(CARRIER_APP_CONFIG_NAME, onsConfigInput);
+
+                    if (mIsEnabled) {
+                        /*  if carrier is reporting availability, then it takes higher priority. */
+                        getProfileSelector().startProfileSelection(availableNetworks, callbackStub,
+                                ONSScanBudgetGovernor.PRIORITY_CARRIER);
+                    }
                 }
             } finally {
                 Binder.restoreCallingIdentity(identity);
@@ -428,24 +634,26 @@ public class OpportunisticNetworkService extends Service {
         } else {
             final long identity = Binder.clearCallingIdentity();
             try {
-                mONSConfigInputHashMap.put(CARRIER_APP_CONFIG_NAME, null);
-                if (!mIsEnabled) {
-                    sendUpdateNetworksCallbackHelper(callbackStub,
-                        TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
-                    return;
-                }
-                /* if carrier is reporting unavailability, then decide whether to start
-                   system app request or not. */
-                if (mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME) != null) {
-                    sendUpdateNetworksCallbackHelper(callbackStub,
+                synchronized (mLock) {
+                    updateConfigInput(CARRIER_APP_CONFIG_NAME, null);
+                    if (!mIsEnabled) {
+                        sendUpdateNetworksCallbackHelper(callbackStub,
                             TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
-                    mProfileSelector.startProfileSelection(
-                            mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
-                                    .getAvailableNetworkInfos(),
-                            mONSConfigInputHashMap.get(
-                                    SYSTEM_APP_CONFIG_NAME).getAvailableNetworkCallback());
-                } else {
-                    mProfileSelector.stopProfileSelection(callbackStub);
+                        return;
+                    }
+                    /* if carrier is reporting unavailability, then decide whether to start
+                       system app request or not. */
+                    if (mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME) != null) {
+                        sendUpdateNetworksCallbackHelper(callbackStub,
+                                TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+                        getProfileSelector().startProfileSelection(
+                                mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
+                                        .getAvailableNetworkInfos(),
+                                mONSConfigInputHashMap.get(
+                                        SYSTEM_APP_CONFIG_NAME).getAvailableNetworkCallback());
+                    } else {
+                        getProfileSelector().stopProfileSelection(callbackStub);
+                    }
                 }
             } finally {
                 Binder.restoreCallingIdentity(identity);
@@ -453,6 +661,25 @@ public class OpportunisticNetworkService extends Service {
         }
     }
 
+    /**
+     * wrap the callback to record the latency from the request until its completion.
+     */
+    private static IUpdateAvailableNetworksCallback measureCallbackLatency(
+            IUpdateAvailableNetworksCallback callback) {
+        if (callback == null) {
+            return null;
+        }
+        final long requestTime = SystemClock.elapsedRealtime();
+        return new IUpdateAvailableNetworksCallback.Stub() {
+            @Override
+            public void onComplete(int result) throws RemoteException {
+                ONSMetrics.getInstance().recordLatencySince(
+                        ONSMetrics.LATENCY_UPDATE_AVAILABLE_NETWORKS, requestTime);
+                callback.onComplete(result);
+            }
+        };
+    }
+
     private void sendUpdateNetworksCallbackHelper(IUpdateAvailableNetworksCallback callback, int result) {
         if (callback == null) return;
         try {
@@ -476,32 +703,34 @@ public class OpportunisticNetworkService extends Service {
             IUpdateAvailableNetworksCallback callbackStub) {
         final long identity = Binder.clearCallingIdentity();
         try {
-            if ((availableNetworks != null) && (availableNetworks.size() > 0)) {
-                /* all subscriptions should be opportunistic subscriptions */
-                if (!mProfileSelector.hasOpprotunisticSub(availableNetworks)) {
-                    log("No opportunistic subscriptions received");
-                    sendUpdateNetworksCallbackHelper(callbackStub,
-                            TelephonyManager.UPDATE_AVAILABLE_NETWORKS_INVALID_ARGUMENTS);
-                    return;
-                }
-                mONSConfigInputHashMap.put(SYSTEM_APP_CONFIG_NAME,
-                        new ONSConfigInput(availableNetworks, callbackStub));
+            synchronized (mLock) {
+                if ((availableNetworks != null) && (availableNetworks.size() > 0)) {
+                    /* all subscriptions should be opportunistic subscriptions */
+                    if (!getProfileSelector().hasOpprotunisticSub(availableNetworks)) {
+                        log("No opportunistic subscriptions received");
+                        sendUpdateNetworksCallbackHelper(callbackStub,
+                                TelephonyManager.UPDATE_AVAILABLE_NETWORKS_INVALID_ARGUMENTS);
+                        return;
+                    }
+                    updateConfigInput(SYSTEM_APP_CONFIG_NAME,
+                            new ONSConfigInput(availableNetworks, callbackStub));
 
-                /* reporting availability. proceed if carrier app has not requested any */
-                if (mIsEnabled && mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) == null) {
-                    mProfileSelector.startProfileSelection(availableNetworks, callbackStub);
-                }
-            } else {
-                if (!mIsEnabled) {
-                    mONSConfigInputHashMap.put(SYSTEM_APP_CONFIG_NAME, null);
-                    sendUpdateNetworksCallbackHelper(callbackStub,
-                        TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
-                    return;
-                }
-                /* reporting unavailability */
-                mONSConfigInputHashMap.put(SYSTEM_APP_CONFIG_NAME, null);
-                if (mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) == null) {
-                    mProfileSelector.stopProfileSelection(callbackStub);
+                    /* reporting availability. proceed if carrier app has not requested any */
+                    if (mIsEnabled && mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) == null) {
+                        getProfileSelector().startProfileSelection(availableNetworks, callbackStub);
+                    }
+                } else {
+                    if (!mIsEnabled) {
+                        updateConfigInput(SYSTEM_APP_CONFIG_NAME, null);
+                        sendUpdateNetworksCallbackHelper(callbackStub,
+                            TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+                        return;
+                    }
+                    /* reporting unavailability */
+                    updateConfigInput(SYSTEM_APP_CONFIG_NAME, null);
+                    if (mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) == null) {
+                        getProfileSelector().stopProfileSelection(callbackStub);
+                    }
                 }
             }
         } finally {
@@ -528,31 +757,39 @@ public class OpportunisticNetworkService extends Service {
             if (mIsEnabled != enable) {
                 updateEnableState(enable);
                 if (!mIsEnabled) {
-                    mProfileSelector.stopProfileSelection(null);
+                    getProfileSelector().stopProfileSelection(null);
                 } else {
-                    if (mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) != null &&
-                        mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME)
-                            .getAvailableNetworkInfos() != null) {
-                        mProfileSelector.startProfileSelection(
-                            mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME)
-                                .getAvailableNetworkInfos(),
-                            mONSConfigInputHashMap.get(
-                                CARRIER_APP_CONFIG_NAME).getAvailableNetworkCallback());
-                    } else if (mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME) != null &&
-                        mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
-                            .getAvailableNetworkInfos() != null) {
-                        mProfileSelector.startProfileSelection(
-                            mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
-                                .getAvailableNetworkInfos(),
-                            mONSConfigInputHashMap.get(
-                                SYSTEM_APP_CONFIG_NAME).getAvailableNetworkCallback());
-                    }
+                    startProfileSelectionForConfigInputs();
                 }
             }
         }
         logDebug("service is enable state " + mIsEnabled);
     }
 
+    /**
+     * start profile selection for the carrier app request if any, else the system app request.
+     */
+    private void startProfileSelectionForConfigInputs() {
+        if (mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME) != null &&
+            mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME)
+                .getAvailableNetworkInfos() != null) {
+            getProfileSelector().startProfileSelection(
+                mONSConfigInputHashMap.get(CARRIER_APP_CONFIG_NAME)
+                    .getAvailableNetworkInfos(),
+                mONSConfigInputHashMap.get(
+                    CARRIER_APP_CONFIG_NAME).getAvailableNetworkCallback(),
+                ONSScanBudgetGovernor.PRIORITY_CARRIER);
+        } else if (mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME) != null &&
+            mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
+                .getAvailableNetworkInfos() != null) {
+            getProfileSelector().startProfileSelection(
+                mONSConfigInputHashMap.get(SYSTEM_APP_CONFIG_NAME)
+                    .getAvailableNetworkInfos(),
+                mONSConfigInputHashMap.get(
+                    SYSTEM_APP_CONFIG_NAME).getAvailableNetworkCallback());
+        }
+    }
+
     private void log(String msg) {
         Rlog.d(TAG, msg);
     }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.SubscriptionInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs shared by the ONS benchmarks. Every input set is generated from a fixed seed so
+ * results can be compared between runs.
+ */
+public class ONSBenchmarkInputs {
+    private static final long SEED = 0x4f4e53L;
+    private static final int FIRST_SUB_ID = 2;
+    private static final int FIRST_MCC = 310;
+    private static final int[] BANDS = {
+            AccessNetworkConstants.EutranBand.BAND_2,
+            AccessNetworkConstants.EutranBand.BAND_4,
+            AccessNetworkConstants.EutranBand.BAND_12,
+            AccessNetworkConstants.EutranBand.BAND_13,
+            AccessNetworkConstants.EutranBand.BAND_41,
+            AccessNetworkConstants.EutranBand.BAND_66,
+    };
+
+    public final String mName;
+    public final ArrayList<AvailableNetworkInfo> mAvailableNetworks = new ArrayList<>();
+    public final List<SubscriptionInfo> mSubscriptionInfos = new ArrayList<>();
+    public final List<CellInfo> mCells = new ArrayList<>();
+
+    /**
+     * @return realistic and worst case input sets, for parameterized benchmarks
+     */
+    public static Collection<Object[]> all() {
+        return Arrays.asList(new Object[][] {
+                /* one or two carriers with a few PLMNs and a handful of cells */
+                {new ONSBenchmarkInputs("realistic", 2, 3, 10)},
+                /* many subscriptions and PLMNs over all priorities and a dense cell list */
+                {new ONSBenchmarkInputs("worstcase", 64, 16, 256)},
+        });
+    }
+
+    private ONSBenchmarkInputs(String name, int networkCount, int mccMncsPerNetwork,
+            int cellCount) {
+        mName = name;
+        Random random = new Random(SEED);
+        List<String> allMccMncs = new ArrayList<>();
+        for (int i = 0; i < networkCount; i++) {
+            int subId = FIRST_SUB_ID + i;
+            ArrayList<String> mccMncs = new ArrayList<>();
+            for (int j = 0; j < mccMncsPerNetwork; j++) {
+                mccMncs.add(String.valueOf(FIRST_MCC + i) + String.format("%03d", j));
+            }
+            ArrayList<Integer> bands = new ArrayList<>();
+            bands.add(BANDS[random.nextInt(BANDS.length)]);
+            /* spread the requests over all priorities */
+            int priority = AvailableNetworkInfo.PRIORITY_HIGH
+                    + i % (AvailableNetworkInfo.PRIORITY_LOW - AvailableNetworkInfo.PRIORITY_HIGH
+                    + 1);
+            mAvailableNetworks.add(new AvailableNetworkInfo(subId, priority, mccMncs, bands));
+            allMccMncs.addAll(mccMncs);
+            mSubscriptionInfos.add(new SubscriptionInfo(subId, "", 1, "ONS", "ONS", 1, 1, "123", 1,
+                    null, String.valueOf(FIRST_MCC + i), "000", "", true, null, "1", true, null,
+                    1839, 1));
+        }
+        /* shuffle so sorting and filtering are not handed pre-sorted input */
+        Collections.shuffle(mAvailableNetworks, random);
+        Collections.shuffle(mSubscriptionInfos, random);
+
+        for (int i = 0; i < cellCount; i++) {
+            String mccMnc;
+            if (random.nextBoolean()) {
+                mccMnc = allMccMncs.get(random.nextInt(allMccMncs.size()));
+            } else {
+                /* a cell of a PLMN that was not requested */
+                mccMnc = "999" + String.format("%03d", random.nextInt(1000));
+            }
+            mCells.add(createLteCell(mccMnc, -60 - random.nextInt(80)));
+        }
+    }
+
+    private static CellInfo createLteCell(String mccMnc, int rsrp) {
+        CellInfoLte cellInfoLte = new CellInfoLte();
+        cellInfoLte.setCellIdentity(new CellIdentityLte(Integer.parseInt(mccMnc.substring(0, 3)),
+                Integer.parseInt(mccMnc.substring(3)), 1, 1, 1));
+        cellInfoLte.setCellSignalStrength(new CellSignalStrengthLte(Integer.MAX_VALUE, rsrp,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        return cellInfoLte;
+    }
+
+    /**
+     * @return a copy of the available networks, equal to but not the same list
+     */
+    public ArrayList<AvailableNetworkInfo> copyAvailableNetworks() {
+        ArrayList<AvailableNetworkInfo> copy = new ArrayList<>(mAvailableNetworks);
+        Collections.reverse(copy);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.content.Context;
+import android.telephony.CellInfo;
+import android.telephony.TelephonyManager;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Benchmarks of the ONSNetworkScanCtlr paths run for every scan request and scan result.
+ * BenchmarkRule reports time and allocation count per iteration.
+ */
+@RunWith(Parameterized.class)
+public class ONSNetworkScanCtlrBenchmark {
+    private static final int PERIODICITY_SEC = 60;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final ONSBenchmarkInputs mInputs;
+    private ONSNetworkScanCtlr mNetworkScanCtlr;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> inputs() {
+        return ONSBenchmarkInputs.all();
+    }
+
+    public ONSNetworkScanCtlrBenchmark(ONSBenchmarkInputs inputs) {
+        mInputs = inputs;
+    }
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mNetworkScanCtlr = new ONSNetworkScanCtlr(context,
+                context.getSystemService(TelephonyManager.class),
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mNetworkScanCtlr.mThread.quit();
+    }
+
+    @Test
+    public void createNetworkScanRequest() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mNetworkScanCtlr.createNetworkScanRequest(mInputs.mAvailableNetworks,
+                    PERIODICITY_SEC);
+        }
+    }
+
+    @Test
+    public void analyzeScanResults() {
+        mNetworkScanCtlr.createNetworkScanRequest(mInputs.mAvailableNetworks,
+                PERIODICITY_SEC);
+        mNetworkScanCtlr.mIsScanActive = true;
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mNetworkScanCtlr.analyzeScanResults(mInputs.mCells);
+        }
+    }
+}
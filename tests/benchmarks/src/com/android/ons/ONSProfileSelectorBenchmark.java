@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.CellInfo;
+import android.telephony.SubscriptionInfo;
+import android.util.ArraySet;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Benchmarks of the ONSProfileSelector paths run for every request and scan result.
+ * BenchmarkRule reports time and allocation count per iteration.
+ */
+@RunWith(Parameterized.class)
+public class ONSProfileSelectorBenchmark {
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final ONSBenchmarkInputs mInputs;
+    private ONSProfileSelector mProfileSelector;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> inputs() {
+        return ONSBenchmarkInputs.all();
+    }
+
+    public ONSProfileSelectorBenchmark(ONSBenchmarkInputs inputs) {
+        mInputs = inputs;
+    }
+
+    @Before
+    public void setUp() {
+        mProfileSelector = new ONSProfileSelector(InstrumentationRegistry.getTargetContext(),
+                new ONSProfileSelector.ONSProfileSelectionCallback() {
+                    @Override
+                    public void onProfileSelectionDone() {
+                    }
+                });
+        mProfileSelector.mOppSubscriptionInfos = new ArrayList<>(mInputs.mSubscriptionInfos);
+        mProfileSelector.mOppSubIds = new ArraySet<>();
+        for (SubscriptionInfo subscriptionInfo : mInputs.mSubscriptionInfos) {
+            mProfileSelector.mOppSubIds.add(subscriptionInfo.getSubscriptionId());
+        }
+        mProfileSelector.mSelectionPlan =
+                ONSNetworkScanCtlr.compileFastScanPlan(mInputs.mAvailableNetworks);
+    }
+
+    @After
+    public void tearDown() {
+        mProfileSelector.mNetworkScanCtlr.mThread.quit();
+        mProfileSelector.mThread.quit();
+    }
+
+    @Test
+    public void retrieveBestSubscription() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            /* results are sorted in place, hand every iteration the unsorted list */
+            state.pauseTiming();
+            List<CellInfo> results = new ArrayList<>(mInputs.mCells);
+            state.resumeTiming();
+            mProfileSelector.retrieveBestSubscription(results);
+        }
+    }
+
+    @Test
+    public void getFilteredAvailableNetworks() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mProfileSelector.getFilteredAvailableNetworks(mInputs.mAvailableNetworks,
+                    mProfileSelector.mOppSubIds);
+        }
+    }
+
+    @Test
+    public void fingerprint() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            ONSSelectionPlan.fingerprint(mInputs.mAvailableNetworks);
+        }
+    }
+
+    @Test
+    public void isSame() {
+        ArrayList<AvailableNetworkInfo> other = mInputs.copyAvailableNetworks();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mProfileSelector.isSame(mInputs.mAvailableNetworks, other);
+        }
+    }
+
+    @Test
+    public void hasOpprotunisticSub() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mProfileSelector.hasOpprotunisticSub(mInputs.mAvailableNetworks);
+        }
+    }
+}
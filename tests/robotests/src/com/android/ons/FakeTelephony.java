@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.telephony.TelephonyScanManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Fake telephony stack for the simulation harness.
+ *
+ * Backs mocked {@link TelephonyManager} and {@link SubscriptionManager} instances with
+ * simulated subscription state, network scans that report the currently visible cells and
+ * eSIM switches that reply after a configurable delay, all on a {@link SimulationClock}.
+ * State is guarded by the instance lock since ONS calls in from its handler threads.
+ */
+public class FakeTelephony {
+    /* default delay between scan start and the first results */
+    public static final long DEFAULT_SCAN_RESULT_DELAY_MS = 5000;
+    /* default delay between switchToSubscription and its reply */
+    public static final long DEFAULT_SWITCH_DELAY_MS = 3000;
+    public static final int PRIMARY_SUB_ID = 1;
+    private static final int PRIMARY_SLOT = 0;
+    private static final int OPPORTUNISTIC_SLOT = 1;
+
+    private final SimulationClock mClock;
+    private final TelephonyManager mTelephonyManager = mock(TelephonyManager.class);
+    private final SubscriptionManager mSubscriptionManager = mock(SubscriptionManager.class);
+
+    private final List<SubscriptionInfo> mOpportunisticSubs = new ArrayList<>();
+    private final Set<Integer> mActiveSubIds = new HashSet<>();
+    private List<CellInfo> mVisibleCells = new ArrayList<>();
+    private long mScanResultDelayMs = DEFAULT_SCAN_RESULT_DELAY_MS;
+    private long mSwitchDelayMs = DEFAULT_SWITCH_DELAY_MS;
+    private Consumer<Intent> mSwitchReplyReceiver;
+
+    /* currently running scan, null if none */
+    private NetworkScan mActiveScan;
+    private int mScanCount;
+    private int mSwitchCount;
+    /* switches requested and not yet replied to */
+    private int mPendingSwitchCount;
+    private int mModemToggleCount;
+
+    public FakeTelephony(SimulationClock clock) {
+        mClock = clock;
+        mActiveSubIds.add(PRIMARY_SUB_ID);
+        setUpTelephonyManager();
+        setUpSubscriptionManager();
+    }
+
+    private void setUpTelephonyManager() {
+        doAnswer(invocation -> mTelephonyManager).when(mTelephonyManager)
+                .createForSubscriptionId(anyInt());
+        doAnswer(invocation -> 2).when(mTelephonyManager).getPhoneCount();
+        doAnswer(invocation -> {
+            synchronized (this) {
+                mModemToggleCount++;
+            }
+            return true;
+        }).when(mTelephonyManager).enableModemForSlot(anyInt(), anyBoolean());
+        doAnswer(invocation -> startScan(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(mTelephonyManager).requestNetworkScan(any(), any());
+        /* simulated carrier apps hold privileges on every subscription */
+        doAnswer(invocation -> true).when(mTelephonyManager).hasCarrierPrivileges(anyInt());
+    }
+
+    private void setUpSubscriptionManager() {
+        doAnswer(invocation -> getOpportunisticSubscriptions()).when(mSubscriptionManager)
+                .getOpportunisticSubscriptions();
+        doAnswer(invocation -> isSubActive(invocation.getArgument(0)))
+                .when(mSubscriptionManager).isActiveSubId(anyInt());
+        doAnswer(invocation -> isSubActive(invocation.getArgument(0)))
+                .when(mSubscriptionManager).isActiveSubscriptionId(anyInt());
+        doAnswer(invocation -> getActiveSubscriptionInfoList()).when(mSubscriptionManager)
+                .getActiveSubscriptionInfoList(anyBoolean());
+        doAnswer(invocation -> getActiveSubscriptionInfoList()).when(mSubscriptionManager)
+                .getActiveSubscriptionInfoList();
+        doAnswer(invocation -> PRIMARY_SUB_ID).when(mSubscriptionManager)
+                .getDefaultSubscriptionId();
+        doAnswer(invocation -> createSubscriptionInfo(PRIMARY_SUB_ID, PRIMARY_SLOT, false,
+                false)).when(mSubscriptionManager).getDefaultVoiceSubscriptionInfo();
+        doAnswer(invocation -> {
+            switchToSubscription(invocation.getArgument(0), invocation.getArgument(1));
+            return null;
+        }).when(mSubscriptionManager).switchToSubscription(anyInt(), any());
+    }
+
+    private synchronized List<SubscriptionInfo> getActiveSubscriptionInfoList() {
+        List<SubscriptionInfo> subscriptionInfos = new ArrayList<>();
+        subscriptionInfos.add(createSubscriptionInfo(PRIMARY_SUB_ID, PRIMARY_SLOT, false, false));
+        for (SubscriptionInfo subscriptionInfo : mOpportunisticSubs) {
+            if (mActiveSubIds.contains(subscriptionInfo.getSubscriptionId())) {
+                subscriptionInfos.add(subscriptionInfo);
+            }
+        }
+        return subscriptionInfos;
+    }
+
+    private synchronized List<SubscriptionInfo> getOpportunisticSubscriptions() {
+        return new ArrayList<>(mOpportunisticSubs);
+    }
+
+    private static SubscriptionInfo createSubscriptionInfo(int subId, int slot,
+            boolean isOpportunistic, boolean isEmbedded) {
+        return new SubscriptionInfo(subId, "", slot, "ONS", "ONS", 1, 1, "123", 1, null, "310",
+                "210", "", isEmbedded, null, "1", isOpportunistic, null, 1839, 1);
+    }
+
+    /**
+     * add an opportunistic eSIM subscription.
+     * @param active whether the subscription is initially active
+     */
+    public synchronized void addOpportunisticSub(int subId, boolean active) {
+        mOpportunisticSubs.add(createSubscriptionInfo(subId, OPPORTUNISTIC_SLOT, true, true));
+        if (active) {
+            mActiveSubIds.add(subId);
+        }
+    }
+
+    /**
+     * set the cells any scan started from now on will report.
+     */
+    public synchronized void setVisibleCells(List<CellInfo> cells) {
+        mVisibleCells = new ArrayList<>(cells);
+    }
+
+    public void setScanResultDelayMs(long delayMs) {
+        mScanResultDelayMs = delayMs;
+    }
+
+    public void setSwitchDelayMs(long delayMs) {
+        mSwitchDelayMs = delayMs;
+    }
+
+    /**
+     * set the receiver of eSIM switch replies, normally the service's onStartCommand.
+     */
+    public void setSwitchReplyReceiver(Consumer<Intent> receiver) {
+        mSwitchReplyReceiver = receiver;
+    }
+
+    /**
+     * create an LTE cell for the given PLMN.
+     */
+    public static CellInfo createLteCell(int mcc, int mnc, int rsrp) {
+        CellInfoLte cellInfoLte = new CellInfoLte();
+        cellInfoLte.setCellIdentity(new CellIdentityLte(mcc, mnc, 1, 1, 1));
+        cellInfoLte.setCellSignalStrength(new CellSignalStrengthLte(
+                Integer.MAX_VALUE, rsrp, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE, Integer.MAX_VALUE));
+        return cellInfoLte;
+    }
+
+    private synchronized NetworkScan startScan(NetworkScanRequest request,
+            TelephonyScanManager.NetworkScanCallback callback) {
+        NetworkScan networkScan = mock(NetworkScan.class);
+        doAnswer(invocation -> {
+            synchronized (this) {
+                if (mActiveScan == networkScan) {
+                    mActiveScan = null;
+                }
+            }
+            return null;
+        }).when(networkScan).stopScan();
+        mActiveScan = networkScan;
+        mScanCount++;
+
+        mClock.schedule(mScanResultDelayMs, () -> {
+            List<CellInfo> results = new ArrayList<>();
+            synchronized (this) {
+                if (mActiveScan != networkScan) {
+                    return;
+                }
+                for (CellInfo cellInfo : mVisibleCells) {
+                    CellIdentityLte identity = ((CellInfoLte) cellInfo).getCellIdentity();
+                    if (request.getPlmns().contains(identity.getMccString()
+                            + identity.getMncString())) {
+                        results.add(cellInfo);
+                    }
+                }
+            }
+            if (results.size() > 0) {
+                callback.onResults(results);
+            }
+        });
+        mClock.schedule(request.getMaxSearchTime() * 1000L, () -> {
+            synchronized (this) {
+                if (mActiveScan != networkScan) {
+                    return;
+                }
+                mActiveScan = null;
+            }
+            callback.onComplete();
+        });
+        return networkScan;
+    }
+
+    private synchronized void switchToSubscription(int subId, PendingIntent replyIntent) {
+        mSwitchCount++;
+        mPendingSwitchCount++;
+        Intent reply = shadowOf(replyIntent).getSavedIntent();
+        mClock.schedule(mSwitchDelayMs, () -> {
+            synchronized (this) {
+                /* an opportunistic eSIM slot holds one active profile */
+                for (SubscriptionInfo subscriptionInfo : mOpportunisticSubs) {
+                    mActiveSubIds.remove(subscriptionInfo.getSubscriptionId());
+                }
+                mActiveSubIds.add(subId);
+                mPendingSwitchCount--;
+            }
+            if (mSwitchReplyReceiver != null) {
+                mSwitchReplyReceiver.accept(reply);
+            }
+        });
+    }
+
+    public TelephonyManager getTelephonyManager() {
+        return mTelephonyManager;
+    }
+
+    public SubscriptionManager getSubscriptionManager() {
+        return mSubscriptionManager;
+    }
+
+    public synchronized boolean isScanActive() {
+        return mActiveScan != null;
+    }
+
+    public synchronized boolean isSubActive(int subId) {
+        return mActiveSubIds.contains(subId);
+    }
+
+    public synchronized boolean isSwitchPending() {
+        return mPendingSwitchCount > 0;
+    }
+
+    /**
+     * @return the active opportunistic subscription, or INVALID_SUBSCRIPTION_ID if none
+     */
+    public synchronized int getActiveOpportunisticSubId() {
+        for (SubscriptionInfo subscriptionInfo : mOpportunisticSubs) {
+            if (mActiveSubIds.contains(subscriptionInfo.getSubscriptionId())) {
+                return subscriptionInfo.getSubscriptionId();
+            }
+        }
+        return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    }
+
+    public synchronized int getScanCount() {
+        return mScanCount;
+    }
+
+    public synchronized int getSwitchCount() {
+        return mSwitchCount;
+    }
+
+    public synchronized int getModemToggleCount() {
+        return mModemToggleCount;
+    }
+}
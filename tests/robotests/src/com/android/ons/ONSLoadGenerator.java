@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.os.RemoteException;
+import android.telephony.AvailableNetworkInfo;
+
+import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the IOns stub of an {@link ONSSimulation} from many concurrent carrier and system
+ * callers, each sending a seeded mix of updateAvailableNetworks requests as fast as it can,
+ * and reports how ONS held up once virtual time has let pending work settle. Callers invoke
+ * the stub directly, so the report covers ONS itself rather than binder transport.
+ */
+public class ONSLoadGenerator {
+    /* opportunistic subscriptions requests are made for */
+    public static final int INACTIVE_SUB_ID = 5;
+    public static final int ACTIVE_SUB_ID = 6;
+    public static final String VISIBLE_MCC_MNC = "310210";
+    private static final String HIDDEN_MCC_MNC = "310999";
+    /* longest time to wait for callers to finish sending */
+    private static final long CALLER_TIMEOUT_MS = 60000;
+
+    /* request mixes */
+    private static final int MIX_SCAN = 0;
+    private static final int MIX_NO_SCAN = 1;
+    private static final int MIX_UNAVAILABLE = 2;
+    private static final int MIX_MULTI_SUB = 3;
+    private static final int MIX_PRIMARY_SUB = 4;
+    private static final int MIX_COUNT = 5;
+
+    private final ONSSimulation mSimulation;
+    private final long mSeed;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mRejected = new AtomicInteger();
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final Map<Integer, Integer> mResultCounts = new TreeMap<>();
+
+    /**
+     * Outcome of one load run.
+     */
+    public static class Report {
+        /* requests sent, and those rejected by a binder exception */
+        public int requests;
+        public int rejected;
+        /* callbacks invoked, and accepted requests whose callback was never invoked */
+        public int completed;
+        public int dropped;
+        /* result code to number of callbacks that reported it */
+        public Map<Integer, Integer> resultCounts;
+        public long scanStarts;
+        public long scanStops;
+        public long callbackLatencyCount;
+        public long callbackLatencyMaxMs;
+        /* messages waiting on the profile selector handler, highest seen and after settling */
+        public int maxQueueDepth;
+        public int finalQueueDepth;
+        /* wall clock time the callers took to send all requests */
+        public long sendTimeMs;
+
+        @Override
+        public String toString() {
+            return "requests=" + requests + " rejected=" + rejected + " completed=" + completed
+                    + " dropped=" + dropped + " results=" + resultCounts
+                    + " scanStarts=" + scanStarts + " scanStops=" + scanStops
+                    + " callbackLatencyCount=" + callbackLatencyCount
+                    + " callbackLatencyMaxMs=" + callbackLatencyMaxMs
+                    + " maxQueueDepth=" + maxQueueDepth + " finalQueueDepth=" + finalQueueDepth
+                    + " sendTimeMs=" + sendTimeMs;
+        }
+    }
+
+    /**
+     * @param simulation simulation to load, with {@link #INACTIVE_SUB_ID} and
+     *        {@link #ACTIVE_SUB_ID} set up as opportunistic subscriptions
+     * @param seed seed of the callers' request mixes
+     */
+    public ONSLoadGenerator(ONSSimulation simulation, long seed) {
+        mSimulation = simulation;
+        mSeed = seed;
+    }
+
+    /**
+     * send requestsPerCaller requests from every caller at once, then let virtual time run for
+     * settleTimeMs before collecting the report.
+     */
+    public Report run(int carrierCallers, int systemCallers, int requestsPerCaller,
+            long settleTimeMs) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < carrierCallers + systemCallers; i++) {
+            boolean isCarrier = i < carrierCallers;
+            Random random = new Random(mSeed + i);
+            callers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < requestsPerCaller; j++) {
+                    ArrayList<AvailableNetworkInfo> request = createRequest(random);
+                    if (isCarrier) {
+                        mSimulation.runAsCarrierApp(() -> sendRequest(request));
+                    } else {
+                        sendRequest(request);
+                    }
+                }
+            }, (isCarrier ? "carrier-" : "system-") + i));
+        }
+        for (Thread caller : callers) {
+            caller.start();
+        }
+
+        long wallStartTime = System.currentTimeMillis();
+        start.countDown();
+        for (Thread caller : callers) {
+            /* keep the ONS loopers running while callers queue work on them */
+            while (caller.isAlive()) {
+                mSimulation.getClock().runUntilIdle();
+                caller.join(1);
+                if (System.currentTimeMillis() - wallStartTime > CALLER_TIMEOUT_MS) {
+                    throw new IllegalStateException("callers did not finish");
+                }
+            }
+        }
+        long sendTimeMs = System.currentTimeMillis() - wallStartTime;
+        mSimulation.advanceBy(settleTimeMs);
+        return createReport(sendTimeMs);
+    }
+
+    private ArrayList<AvailableNetworkInfo> createRequest(Random random) {
+        ArrayList<AvailableNetworkInfo> availableNetworks = new ArrayList<>();
+        int subId = random.nextBoolean() ? INACTIVE_SUB_ID : ACTIVE_SUB_ID;
+        int priority = AvailableNetworkInfo.PRIORITY_HIGH + random.nextInt(
+                AvailableNetworkInfo.PRIORITY_LOW - AvailableNetworkInfo.PRIORITY_HIGH + 1);
+        switch (random.nextInt(MIX_COUNT)) {
+            case MIX_SCAN:
+                availableNetworks.add(createNetwork(subId, priority,
+                        random.nextBoolean() ? VISIBLE_MCC_MNC : HIDDEN_MCC_MNC));
+                break;
+            case MIX_NO_SCAN:
+                /* no PLMNs means activate the subscription without scanning */
+                availableNetworks.add(createNetwork(subId, priority));
+                break;
+            case MIX_UNAVAILABLE:
+                break;
+            case MIX_MULTI_SUB:
+                availableNetworks.add(createNetwork(INACTIVE_SUB_ID, priority, VISIBLE_MCC_MNC));
+                availableNetworks.add(createNetwork(ACTIVE_SUB_ID, priority, HIDDEN_MCC_MNC));
+                break;
+            case MIX_PRIMARY_SUB:
+                availableNetworks.add(createNetwork(FakeTelephony.PRIMARY_SUB_ID, priority,
+                        VISIBLE_MCC_MNC));
+                break;
+        }
+        return availableNetworks;
+    }
+
+    private static AvailableNetworkInfo createNetwork(int subId, int priority,
+            String... mccMncs) {
+        return new AvailableNetworkInfo(subId, priority, new ArrayList<>(Arrays.asList(mccMncs)),
+                new ArrayList<Integer>());
+    }
+
+    private void sendRequest(ArrayList<AvailableNetworkInfo> availableNetworks) {
+        mRequests.incrementAndGet();
+        AtomicBoolean isCompleted = new AtomicBoolean();
+        try {
+            mSimulation.getOns().updateAvailableNetworks(availableNetworks,
+                    new IUpdateAvailableNetworksCallback.Stub() {
+                        @Override
+                        public void onComplete(int result) {
+                            /* count a callback invoked more than once only once */
+                            if (isCompleted.getAndSet(true)) {
+                                return;
+                            }
+                            mCompleted.incrementAndGet();
+                            synchronized (mResultCounts) {
+                                mResultCounts.merge(result, 1, Integer::sum);
+                            }
+                        }
+                    }, "com.android.ons.load");
+        } catch (RemoteException | RuntimeException e) {
+            mRejected.incrementAndGet();
+        }
+    }
+
+    private Report createReport(long sendTimeMs) {
+        ONSMetrics metrics = ONSMetrics.getInstance();
+        ONSProfileSelector profileSelector = mSimulation.getProfileSelector();
+        Report report = new Report();
+        report.requests = mRequests.get();
+        report.rejected = mRejected.get();
+        report.completed = mCompleted.get();
+        report.dropped = report.requests - report.rejected - report.completed;
+        synchronized (mResultCounts) {
+            report.resultCounts = new TreeMap<>(mResultCounts);
+        }
+        report.scanStarts = metrics.getCounter(ONSMetrics.COUNTER_SCAN_STARTED);
+        report.scanStops = metrics.getCounter(ONSMetrics.COUNTER_SCAN_STOPPED);
+        report.callbackLatencyCount = metrics.getLatencyCount(
+                ONSMetrics.LATENCY_UPDATE_AVAILABLE_NETWORKS);
+        report.callbackLatencyMaxMs = metrics.getLatencyMax(
+                ONSMetrics.LATENCY_UPDATE_AVAILABLE_NETWORKS);
+        report.maxQueueDepth = profileSelector.getMaxQueueDepth();
+        report.finalQueueDepth = profileSelector.getQueueDepth();
+        report.sendTimeMs = sendTimeMs;
+        return report;
+    }
+}
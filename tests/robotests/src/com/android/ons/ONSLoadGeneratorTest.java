@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.annotation.LooperMode.Mode.PAUSED;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(PAUSED)
+@Config(shadows = {ShadowTelephonyPermissions.class})
+public class ONSLoadGeneratorTest {
+    private static final String TAG = "ONSTest";
+    private static final long SEED = 35;
+    private static final long SETTLE_TIME_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private ONSSimulation mSimulation;
+
+    @Before
+    public void setUp() {
+        mSimulation = new ONSSimulation();
+        FakeTelephony telephony = mSimulation.getTelephony();
+        telephony.addOpportunisticSub(ONSLoadGenerator.INACTIVE_SUB_ID, false);
+        telephony.addOpportunisticSub(ONSLoadGenerator.ACTIVE_SUB_ID, true);
+        telephony.setVisibleCells(Arrays.asList(FakeTelephony.createLteCell(310, 210, -90)));
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+    }
+
+    @After
+    public void tearDown() {
+        mSimulation.tearDown();
+    }
+
+    private void assertConsistent(ONSLoadGenerator.Report report, int expectedRequests) {
+        Log.d(TAG, "ONS load: " + report);
+        assertThat(report.requests).isEqualTo(expectedRequests);
+        assertThat(report.completed + report.dropped + report.rejected)
+                .isEqualTo(report.requests);
+        /* every callback ONS completed went through the latency wrapper */
+        assertThat(report.callbackLatencyCount).isAtLeast(report.completed);
+        assertThat(report.scanStops).isAtMost(report.scanStarts);
+        /* the selector drains its queue once the storm is over */
+        assertThat(report.finalQueueDepth).isEqualTo(0);
+    }
+
+    @Test
+    public void testCarrierAndSystemStorm() throws Exception {
+        ONSLoadGenerator.Report report = new ONSLoadGenerator(mSimulation, SEED)
+                .run(8, 8, 50, SETTLE_TIME_MS);
+
+        assertConsistent(report, 800);
+        assertThat(report.maxQueueDepth).isGreaterThan(0);
+    }
+
+    @Test
+    public void testSingleCarrierBurst() throws Exception {
+        ONSLoadGenerator.Report report = new ONSLoadGenerator(mSimulation, SEED)
+                .run(1, 0, 200, SETTLE_TIME_MS);
+
+        assertConsistent(report, 200);
+        /* a single requester replaces its own request, so every earlier callback completes */
+        assertThat(report.dropped).isAtMost(1);
+    }
+}
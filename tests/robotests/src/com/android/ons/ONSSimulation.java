@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.telephony.AvailableNetworkInfo;
+
+import com.android.internal.telephony.IOns;
+import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
+
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * End to end simulation of OpportunisticNetworkService, ONSProfileSelector and
+ * ONSNetworkScanCtlr on the JVM, backed by {@link FakeTelephony} and a {@link SimulationClock}.
+ *
+ * Tests using it must run with Robolectric's paused looper mode. Requests go through the
+ * IOns binder stub as a privileged system caller unless run through
+ * {@link #runAsCarrierApp(Runnable)}.
+ */
+public class ONSSimulation {
+    private static final String PREF_NAME = "ONS";
+
+    private final SimulationClock mClock = new SimulationClock();
+    private final FakeTelephony mTelephony = new FakeTelephony(mClock);
+    private final OpportunisticNetworkService mService = new OpportunisticNetworkService();
+    private final ONSProfileSelector mProfileSelector;
+    private final IOns mOns;
+    /* results delivered to callbacks of requests sent through this harness */
+    private final List<Integer> mCallbackResults =
+            Collections.synchronizedList(new ArrayList<>());
+    /* whether binder calls on the current thread come from a carrier app */
+    private final ThreadLocal<Boolean> mIsCarrierCaller = ThreadLocal.withInitial(() -> false);
+
+    private class SimulationContext extends ContextWrapper {
+        SimulationContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            switch (name) {
+                case Context.TELEPHONY_SERVICE:
+                    return mTelephony.getTelephonyManager();
+                case Context.TELEPHONY_SUBSCRIPTION_SERVICE:
+                    return mTelephony.getSubscriptionManager();
+                case Context.CARRIER_CONFIG_SERVICE:
+                    /* use default carrier config values */
+                    return null;
+                default:
+                    return super.getSystemService(name);
+            }
+        }
+
+        @Override
+        public int checkCallingOrSelfPermission(String permission) {
+            if (mIsCarrierCaller.get()
+                    && android.Manifest.permission.MODIFY_PHONE_STATE.equals(permission)) {
+                return PackageManager.PERMISSION_DENIED;
+            }
+            return PackageManager.PERMISSION_GRANTED;
+        }
+
+        @Override
+        public Context createDeviceProtectedStorageContext() {
+            return this;
+        }
+    }
+
+    public ONSSimulation() {
+        Context context = new SimulationContext(RuntimeEnvironment.application);
+        /* every simulation starts without persisted state */
+        context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        new File(context.getFilesDir(), ONSCoverageDatabase.FILE_NAME).delete();
+        ONSMetrics.getInstance().reset();
+
+        /* set before initialization so the profile selector and database are created with it */
+        mService.setScheduler(mClock.getScheduler());
+        mService.initialize(context);
+        mService.completeInitialization();
+        mProfileSelector = mService.getProfileSelector();
+        mOns = (IOns) mService.onBind(null);
+        mTelephony.setSwitchReplyReceiver(intent -> mService.onStartCommand(intent, 0, 0));
+
+        mClock.addLooper(Looper.getMainLooper());
+        mClock.addLooper(mProfileSelector.mThread.getLooper());
+        mClock.addLooper(mProfileSelector.mNetworkScanCtlr.mThread.getLooper());
+        mClock.runUntilIdle();
+    }
+
+    /**
+     * send updateAvailableNetworks through the binder stub.
+     */
+    public void updateAvailableNetworks(List<AvailableNetworkInfo> availableNetworks) {
+        try {
+            mOns.updateAvailableNetworks(availableNetworks,
+                    new IUpdateAvailableNetworksCallback.Stub() {
+                        @Override
+                        public void onComplete(int result) {
+                            mCallbackResults.add(result);
+                        }
+                    }, "com.android.ons.simulation");
+        } catch (RemoteException e) {
+            throw new IllegalStateException(e);
+        }
+        mClock.runUntilIdle();
+    }
+
+    /**
+     * run binder calls made by action on the current thread as a carrier app, which holds
+     * carrier privileges but not MODIFY_PHONE_STATE. Requires {@link ShadowTelephonyPermissions}.
+     */
+    public void runAsCarrierApp(Runnable action) {
+        mIsCarrierCaller.set(true);
+        try {
+            action.run();
+        } finally {
+            mIsCarrierCaller.set(false);
+        }
+    }
+
+    /**
+     * advance virtual time.
+     */
+    public void advanceBy(long durationMs) {
+        mClock.advanceBy(durationMs);
+    }
+
+    /**
+     * stop the ONS handler threads. The simulation can not be used afterwards.
+     */
+    public void tearDown() {
+        mClock.removeLooper(mProfileSelector.mThread.getLooper());
+        mClock.removeLooper(mProfileSelector.mNetworkScanCtlr.mThread.getLooper());
+        mProfileSelector.mNetworkScanCtlr.mThread.quit();
+        mProfileSelector.mThread.quit();
+    }
+
+    public IOns getOns() {
+        return mOns;
+    }
+
+    public SimulationClock getClock() {
+        return mClock;
+    }
+
+    public FakeTelephony getTelephony() {
+        return mTelephony;
+    }
+
+    public OpportunisticNetworkService getService() {
+        return mService;
+    }
+
+    public ONSProfileSelector getProfileSelector() {
+        return mProfileSelector;
+    }
+
+    public List<Integer> getCallbackResults() {
+        return mCallbackResults;
+    }
+}
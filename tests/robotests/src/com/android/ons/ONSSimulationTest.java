@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.annotation.LooperMode.Mode.PAUSED;
+
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.TelephonyManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(PAUSED)
+public class ONSSimulationTest {
+    private static final int OPPORTUNISTIC_SUB_ID = 5;
+    private static final int SECOND_OPPORTUNISTIC_SUB_ID = 6;
+    private static final int GOOD_RSRP = -90;
+    private static final int RANDOM_SCENARIOS = 100;
+
+    private ONSSimulation mSimulation;
+
+    @Before
+    public void setUp() {
+        mSimulation = new ONSSimulation();
+    }
+
+    @After
+    public void tearDown() {
+        mSimulation.tearDown();
+    }
+
+    private static ArrayList<AvailableNetworkInfo> createRequest(int subId, String... mccMncs) {
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<>();
+        availableNetworkInfos.add(new AvailableNetworkInfo(subId, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList(mccMncs)), new ArrayList<Integer>()));
+        return availableNetworkInfos;
+    }
+
+    @Test
+    public void testSwitchesToInactiveSubWhenNetworkIsVisible() {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        telephony.addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+        telephony.setVisibleCells(Arrays.asList(FakeTelephony.createLteCell(310, 210, GOOD_RSRP)));
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+
+        mSimulation.updateAvailableNetworks(createRequest(OPPORTUNISTIC_SUB_ID, "310210"));
+        mSimulation.advanceBy(TimeUnit.SECONDS.toMillis(30));
+
+        assertThat(telephony.getSwitchCount()).isEqualTo(1);
+        assertThat(telephony.isSubActive(OPPORTUNISTIC_SUB_ID)).isTrue();
+        assertThat(telephony.isScanActive()).isFalse();
+        assertThat(mSimulation.getCallbackResults())
+                .containsExactly(TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+        assertThat(mSimulation.getProfileSelector().mSelectionPlan).isNull();
+    }
+
+    @Test
+    public void testKeepsScanningWithoutCoverage() {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        telephony.addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+
+        mSimulation.updateAvailableNetworks(createRequest(OPPORTUNISTIC_SUB_ID, "310210"));
+        mSimulation.advanceBy(TimeUnit.MINUTES.toMillis(10));
+
+        assertThat(telephony.getSwitchCount()).isEqualTo(0);
+        assertThat(telephony.getScanCount()).isGreaterThan(1);
+        assertThat(mSimulation.getCallbackResults()).isEmpty();
+    }
+
+    @Test
+    public void testExitsToNextCandidateWhenSignalDegrades() {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        telephony.addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+        telephony.addOpportunisticSub(SECOND_OPPORTUNISTIC_SUB_ID, false);
+        telephony.setVisibleCells(Arrays.asList(FakeTelephony.createLteCell(310, 210, GOOD_RSRP)));
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+        ArrayList<AvailableNetworkInfo> request = createRequest(OPPORTUNISTIC_SUB_ID, "310210");
+        request.addAll(createRequest(SECOND_OPPORTUNISTIC_SUB_ID, "310410"));
+        mSimulation.updateAvailableNetworks(request);
+        mSimulation.advanceBy(TimeUnit.SECONDS.toMillis(30));
+        assertThat(telephony.isSubActive(OPPORTUNISTIC_SUB_ID)).isTrue();
+
+        // The first network fades while the second becomes visible.
+        telephony.setVisibleCells(Arrays.asList(FakeTelephony.createLteCell(310, 410, GOOD_RSRP)));
+        int modemToggles = telephony.getModemToggleCount();
+        ONSExitMonitor exitMonitor = mSimulation.getProfileSelector().mExitMonitor;
+        assertThat(exitMonitor.getMonitoredSubId()).isEqualTo(OPPORTUNISTIC_SUB_ID);
+        exitMonitor.onRsrpChanged(OPPORTUNISTIC_SUB_ID, -130);
+        mSimulation.advanceBy(TimeUnit.SECONDS.toMillis(30));
+
+        assertThat(telephony.getModemToggleCount()).isGreaterThan(modemToggles);
+        assertThat(telephony.getSwitchCount()).isEqualTo(2);
+        assertThat(telephony.isSubActive(SECOND_OPPORTUNISTIC_SUB_ID)).isTrue();
+        assertThat(exitMonitor.getMonitoredSubId()).isEqualTo(SECOND_OPPORTUNISTIC_SUB_ID);
+    }
+
+    @Test
+    public void testNewRequestStopsExitMonitor() {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        telephony.addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+        telephony.addOpportunisticSub(SECOND_OPPORTUNISTIC_SUB_ID, false);
+        telephony.setVisibleCells(Arrays.asList(FakeTelephony.createLteCell(310, 210, GOOD_RSRP)));
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+        mSimulation.updateAvailableNetworks(createRequest(OPPORTUNISTIC_SUB_ID, "310210"));
+        mSimulation.advanceBy(TimeUnit.SECONDS.toMillis(30));
+        ONSExitMonitor exitMonitor = mSimulation.getProfileSelector().mExitMonitor;
+        assertThat(exitMonitor.getMonitoredSubId()).isEqualTo(OPPORTUNISTIC_SUB_ID);
+
+        // A request for another network replaces the plan the monitor was started for.
+        mSimulation.updateAvailableNetworks(createRequest(SECOND_OPPORTUNISTIC_SUB_ID, "310410"));
+        int modemToggles = telephony.getModemToggleCount();
+        exitMonitor.onRsrpChanged(OPPORTUNISTIC_SUB_ID, -130);
+        mSimulation.advanceBy(TimeUnit.SECONDS.toMillis(30));
+
+        assertThat(exitMonitor.getMonitoredSubId()).isNotEqualTo(OPPORTUNISTIC_SUB_ID);
+        assertThat(telephony.getModemToggleCount()).isEqualTo(modemToggles);
+    }
+
+    @Test
+    public void testRandomScenarios() {
+        Random random = new Random(0);
+        for (int i = 0; i < RANDOM_SCENARIOS; i++) {
+            ONSSimulation simulation = new ONSSimulation();
+            try {
+                runRandomScenario(simulation, random);
+            } finally {
+                simulation.tearDown();
+            }
+        }
+    }
+
+    private void runRandomScenario(ONSSimulation simulation, Random random) {
+        FakeTelephony telephony = simulation.getTelephony();
+        telephony.addOpportunisticSub(OPPORTUNISTIC_SUB_ID, random.nextBoolean());
+        telephony.addOpportunisticSub(SECOND_OPPORTUNISTIC_SUB_ID, false);
+        telephony.setScanResultDelayMs(random.nextInt(60000));
+        telephony.setSwitchDelayMs(random.nextInt(10000));
+        boolean visible = random.nextBoolean();
+        if (visible) {
+            telephony.setVisibleCells(
+                    Arrays.asList(FakeTelephony.createLteCell(310, 210, GOOD_RSRP)));
+        }
+        simulation.getProfileSelector().updateOpportunisticSubscriptions();
+
+        int subId = random.nextBoolean() ? OPPORTUNISTIC_SUB_ID : SECOND_OPPORTUNISTIC_SUB_ID;
+        simulation.updateAvailableNetworks(createRequest(subId, "310210"));
+        simulation.advanceBy(TimeUnit.MINUTES.toMillis(5));
+
+        List<Integer> results = simulation.getCallbackResults();
+        assertThat(results.size()).isAtMost(1);
+        assertThat(telephony.getSwitchCount()).isAtMost(1);
+        if (visible) {
+            assertThat(results)
+                    .containsExactly(TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS);
+            assertThat(telephony.isSubActive(subId)).isTrue();
+        } else {
+            assertThat(results).isEmpty();
+            assertThat(telephony.getSwitchCount()).isEqualTo(0);
+        }
+    }
+}
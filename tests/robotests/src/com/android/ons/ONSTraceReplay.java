@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.SubscriptionManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays a drive test trace through an {@link ONSSimulation} and scores the resulting
+ * selection behaviour. Each trace sample sets the cells visible to network scans from its
+ * timestamp on, so scan results reach ONSNetworkScanCtlr.analyzeScanResults and the profile
+ * selector exactly as they would on a device driving the same route.
+ *
+ * Trace format, one sample per line, '#' starts a comment:
+ * <pre>
+ *   &lt;time ms&gt; [&lt;mcc&gt;&lt;3 digit mnc&gt;:&lt;rsrp dBm&gt; ...]
+ * </pre>
+ * A sample without cells means no coverage.
+ */
+public class ONSTraceReplay {
+    /* resolution of the time accounting */
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private final ONSSimulation mSimulation;
+
+    /**
+     * Cells visible from a point in time on.
+     */
+    public static class Sample {
+        public final long mTimeMs;
+        public final List<CellInfo> mCells;
+
+        public Sample(long timeMs, List<CellInfo> cells) {
+            mTimeMs = timeMs;
+            mCells = cells;
+        }
+    }
+
+    /**
+     * Selection quality of one replay.
+     */
+    public static class Scorecard {
+        public long mDurationMs;
+        public int mSwitchCount;
+        public int mModemToggleCount;
+        /* time each subscription carried opportunistic data, primary when none did */
+        public final Map<Integer, Long> mTimeOnSubMs = new TreeMap<>();
+        /* time from the request until the first opportunistic subscription was active, -1 if
+           that never happened */
+        public long mTimeToFirstAttachMs = -1;
+        /* time an eSIM switch was in progress, or the active opportunistic subscription had
+           none of its requested networks in coverage */
+        public long mOutageMs;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Scorecard)) {
+                return false;
+            }
+            return toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "durationMs=" + mDurationMs + " switches=" + mSwitchCount
+                    + " modemToggles=" + mModemToggleCount + " timeOnSubMs=" + mTimeOnSubMs
+                    + " timeToFirstAttachMs=" + mTimeToFirstAttachMs + " outageMs=" + mOutageMs;
+        }
+    }
+
+    public ONSTraceReplay(ONSSimulation simulation) {
+        mSimulation = simulation;
+    }
+
+    /**
+     * parse a trace in the format described above.
+     */
+    public static List<Sample> parse(Reader reader) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            int commentStart = line.indexOf('#');
+            if (commentStart >= 0) {
+                line = line.substring(0, commentStart);
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 0 || fields[0].isEmpty()) {
+                continue;
+            }
+            List<CellInfo> cells = new ArrayList<>();
+            for (int i = 1; i < fields.length; i++) {
+                String[] cell = fields[i].split(":");
+                if (cell.length != 2 || cell[0].length() != 6) {
+                    throw new IOException("malformed cell " + fields[i]);
+                }
+                cells.add(FakeTelephony.createLteCell(Integer.parseInt(cell[0].substring(0, 3)),
+                        Integer.parseInt(cell[0].substring(3)), Integer.parseInt(cell[1])));
+            }
+            samples.add(new Sample(Long.parseLong(fields[0]), cells));
+        }
+        return samples;
+    }
+
+    /**
+     * send request through the system app path and replay trace for durationMs.
+     * @param trace samples in time order, relative to the request
+     */
+    public Scorecard replay(ArrayList<AvailableNetworkInfo> request, List<Sample> trace,
+            long durationMs) {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        Scorecard scorecard = new Scorecard();
+        scorecard.mDurationMs = durationMs;
+        int switchCountAtStart = telephony.getSwitchCount();
+        int modemToggleCountAtStart = telephony.getModemToggleCount();
+
+        int nextSample = 0;
+        List<CellInfo> visibleCells = new ArrayList<>();
+        telephony.setVisibleCells(visibleCells);
+        mSimulation.updateAvailableNetworks(request);
+        for (long time = 0; time < durationMs; time += SAMPLE_INTERVAL_MS) {
+            while (nextSample < trace.size() && trace.get(nextSample).mTimeMs <= time) {
+                visibleCells = trace.get(nextSample++).mCells;
+                telephony.setVisibleCells(visibleCells);
+            }
+            account(scorecard, request, visibleCells, time);
+            mSimulation.advanceBy(Math.min(SAMPLE_INTERVAL_MS, durationMs - time));
+        }
+
+        scorecard.mSwitchCount = telephony.getSwitchCount() - switchCountAtStart;
+        scorecard.mModemToggleCount = telephony.getModemToggleCount() - modemToggleCountAtStart;
+        return scorecard;
+    }
+
+    /* attribute the interval starting at time */
+    private void account(Scorecard scorecard, List<AvailableNetworkInfo> request,
+            List<CellInfo> visibleCells, long time) {
+        FakeTelephony telephony = mSimulation.getTelephony();
+        long interval = Math.min(SAMPLE_INTERVAL_MS, scorecard.mDurationMs - time);
+        int subId = telephony.getActiveOpportunisticSubId();
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            scorecard.mTimeOnSubMs.merge(FakeTelephony.PRIMARY_SUB_ID, interval, Long::sum);
+        } else {
+            scorecard.mTimeOnSubMs.merge(subId, interval, Long::sum);
+            if (scorecard.mTimeToFirstAttachMs < 0) {
+                scorecard.mTimeToFirstAttachMs = time;
+            }
+        }
+
+        if (telephony.isSwitchPending() || (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                && !isInCoverage(subId, request, visibleCells))) {
+            scorecard.mOutageMs += interval;
+        }
+    }
+
+    /* whether a network requested for subId is among visibleCells */
+    private static boolean isInCoverage(int subId, List<AvailableNetworkInfo> request,
+            List<CellInfo> visibleCells) {
+        for (AvailableNetworkInfo availableNetworkInfo : request) {
+            if (availableNetworkInfo.getSubId() != subId) {
+                continue;
+            }
+            for (CellInfo cellInfo : visibleCells) {
+                CellIdentityLte identity = ((CellInfoLte) cellInfo).getCellIdentity();
+                if (availableNetworkInfo.getMccMncs().contains(
+                        identity.getMccString() + identity.getMncString())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.annotation.LooperMode.Mode.PAUSED;
+
+import android.telephony.AvailableNetworkInfo;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(PAUSED)
+public class ONSTraceReplayTest {
+    private static final String TAG = "ONSTest";
+    private static final int OPPORTUNISTIC_SUB_ID = 5;
+    private static final long DURATION_MS = TimeUnit.MINUTES.toMillis(15);
+    /* leaves the opportunistic network's coverage for three minutes mid drive */
+    private static final String DRIVE_TRACE =
+            "# time ms, visible cells\n"
+            + "0\n"
+            + "60000 310210:-95 310410:-80\n"
+            + "300000 310410:-80   # coverage gap\n"
+            + "480000 310210:-90\n";
+
+    private ONSSimulation mSimulation;
+
+    @Before
+    public void setUp() {
+        mSimulation = new ONSSimulation();
+        mSimulation.getTelephony().addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+        mSimulation.getProfileSelector().updateOpportunisticSubscriptions();
+    }
+
+    @After
+    public void tearDown() {
+        mSimulation.tearDown();
+    }
+
+    private static ArrayList<AvailableNetworkInfo> createRequest() {
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<>();
+        availableNetworkInfos.add(new AvailableNetworkInfo(OPPORTUNISTIC_SUB_ID,
+                AvailableNetworkInfo.PRIORITY_HIGH, new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<Integer>()));
+        return availableNetworkInfos;
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        List<ONSTraceReplay.Sample> trace = ONSTraceReplay.parse(new StringReader(DRIVE_TRACE));
+
+        assertThat(trace).hasSize(4);
+        assertThat(trace.get(0).mCells).isEmpty();
+        assertThat(trace.get(1).mTimeMs).isEqualTo(60000);
+        assertThat(trace.get(1).mCells).hasSize(2);
+        assertThat(trace.get(2).mCells).hasSize(1);
+    }
+
+    @Test
+    public void testReplayDriveTrace() throws Exception {
+        List<ONSTraceReplay.Sample> trace = ONSTraceReplay.parse(new StringReader(DRIVE_TRACE));
+
+        ONSTraceReplay.Scorecard scorecard =
+                new ONSTraceReplay(mSimulation).replay(createRequest(), trace, DURATION_MS);
+        Log.d(TAG, "ONS trace replay: " + scorecard);
+
+        /* attaches once the network is seen, and stays attached through the gap */
+        assertThat(scorecard.mSwitchCount).isEqualTo(1);
+        assertThat(scorecard.mTimeToFirstAttachMs).isAtLeast(60000L);
+        assertThat(scorecard.mTimeOnSubMs.values().stream().mapToLong(Long::longValue).sum())
+                .isEqualTo(DURATION_MS);
+        assertThat(scorecard.mTimeOnSubMs.get(OPPORTUNISTIC_SUB_ID)).isGreaterThan(0L);
+        /* the gap is an outage because the attached subscription lost its network */
+        assertThat(scorecard.mOutageMs).isAtLeast(TimeUnit.MINUTES.toMillis(3));
+    }
+
+    @Test
+    public void testReplayIsRepeatable() throws Exception {
+        List<ONSTraceReplay.Sample> trace = ONSTraceReplay.parse(new StringReader(DRIVE_TRACE));
+        ONSTraceReplay.Scorecard first =
+                new ONSTraceReplay(mSimulation).replay(createRequest(), trace, DURATION_MS);
+
+        ONSSimulation simulation = new ONSSimulation();
+        try {
+            simulation.getTelephony().addOpportunisticSub(OPPORTUNISTIC_SUB_ID, false);
+            simulation.getProfileSelector().updateOpportunisticSubscriptions();
+            ONSTraceReplay.Scorecard second =
+                    new ONSTraceReplay(simulation).replay(createRequest(), trace, DURATION_MS);
+            assertThat(second).isEqualTo(first);
+        } finally {
+            simulation.tearDown();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import com.android.internal.telephony.TelephonyPermissions;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Grants carrier privileges to every caller, so simulated carrier apps pass the checks that
+ * would otherwise query the telephony service.
+ */
+@Implements(value = TelephonyPermissions.class, isInAndroidSdk = false)
+public class ShadowTelephonyPermissions {
+    @Implementation
+    protected static void enforceCallingOrSelfCarrierPrivilege(int subId, String message) {
+    }
+}
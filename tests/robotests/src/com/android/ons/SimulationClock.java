@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Virtual time scheduler for the simulation harness.
+ *
+ * Time only moves in {@link #advanceBy(long)}. Events scheduled by the fake telephony stack
+ * and messages queued on the ONS loopers are run in time order, so a simulated hour takes
+ * as long as the work done in it. Requires Robolectric's paused looper mode, where
+ * {@link SystemClock} is virtual for all loopers. Events may be scheduled from any thread.
+ * {@link #getScheduler()} gives ONS the same clock, so there is a single virtual time.
+ */
+public class SimulationClock {
+    /* wall clock time at the start of every simulation, 2019-01-01 00:00 UTC */
+    private static final long WALL_CLOCK_BASE_MS = 1546300800000L;
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private final List<Looper> mLoopers = new ArrayList<>();
+    private final long mWallClockOffsetMs = WALL_CLOCK_BASE_MS - SystemClock.uptimeMillis();
+    private long mNextSequence;
+    /* messages go through the handlers, whose loopers are run by advanceBy */
+    private final ONSScheduler mScheduler = new ONSScheduler() {
+        @Override
+        public long elapsedRealtime() {
+            return now();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now() + mWallClockOffsetMs;
+        }
+    };
+
+    private static class Event implements Comparable<Event> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Event(long time, long sequence, Runnable runnable) {
+            mTime = time;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTime != other.mTime) {
+                return Long.compare(mTime, other.mTime);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * @return current virtual time in milliseconds
+     */
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return scheduler for ONS that reads this clock
+     */
+    public ONSScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * run loopers registered here whenever time advances.
+     */
+    public void addLooper(Looper looper) {
+        mLoopers.add(looper);
+    }
+
+    public void removeLooper(Looper looper) {
+        mLoopers.remove(looper);
+    }
+
+    /**
+     * schedule an event at now() + delayMs.
+     */
+    public void schedule(long delayMs, Runnable runnable) {
+        synchronized (mEvents) {
+            mEvents.add(new Event(now() + Math.max(0, delayMs), mNextSequence++, runnable));
+        }
+    }
+
+    /* remove and return the earliest event if it is due, null otherwise */
+    private Runnable pollDueEvent() {
+        synchronized (mEvents) {
+            if (!mEvents.isEmpty() && mEvents.peek().mTime <= now()) {
+                return mEvents.poll().mRunnable;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * run everything that is due without advancing time.
+     */
+    public void runUntilIdle() {
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            Runnable event;
+            while ((event = pollDueEvent()) != null) {
+                event.run();
+                busy = true;
+            }
+            for (Looper looper : new ArrayList<>(mLoopers)) {
+                ShadowLooper shadowLooper = shadowOf(looper);
+                if (!shadowLooper.isIdle()) {
+                    shadowLooper.idle();
+                    busy = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * advance virtual time, running events and looper messages in time order.
+     */
+    public void advanceBy(long durationMs) {
+        long target = now() + durationMs;
+        runUntilIdle();
+        long next = getNextDueTime();
+        while (next <= target) {
+            if (next > now()) {
+                ShadowSystemClock.advanceBy(Duration.ofMillis(next - now()));
+            }
+            runUntilIdle();
+            next = getNextDueTime();
+        }
+        if (target > now()) {
+            ShadowSystemClock.advanceBy(Duration.ofMillis(target - now()));
+        }
+        runUntilIdle();
+    }
+
+    private long getNextDueTime() {
+        long next = Long.MAX_VALUE;
+        synchronized (mEvents) {
+            if (!mEvents.isEmpty()) {
+                next = mEvents.peek().mTime;
+            }
+        }
+        for (Looper looper : mLoopers) {
+            long taskTime = shadowOf(looper).getNextScheduledTaskTime().toMillis();
+            if (taskTime > now()) {
+                next = Math.min(next, taskTime);
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AvailableNetworkInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ONSBandHistoryTest extends ONSBaseTest {
+    private ONSSelectionPlan mPlan;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        ArrayList<AvailableNetworkInfo> availableNetworks = new ArrayList<>();
+        availableNetworks.add(new AvailableNetworkInfo(1, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310210", "310211")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_2,
+                        AccessNetworkConstants.EutranBand.BAND_66))));
+        mPlan = ONSNetworkScanCtlr.compileFastScanPlan(availableNetworks);
+    }
+
+    @Test
+    public void testKnownBands() {
+        ONSBandHistory history = new ONSBandHistory();
+        assertEquals(0, history.getKnownBands(mPlan.getMccMncs(), mPlan).length);
+
+        history.recordHit("310211", AccessNetworkConstants.EutranBand.BAND_66);
+        history.recordHit("310211", AccessNetworkConstants.EutranBand.BAND_66);
+        history.recordHit("310210", AccessNetworkConstants.EutranBand.BAND_48);
+        // Bands outside the plan and PLMNs outside the request are ignored.
+        history.recordHit("310210", AccessNetworkConstants.EutranBand.BAND_4);
+        history.recordHit("310260", AccessNetworkConstants.EutranBand.BAND_2);
+
+        assertEquals(2, history.getHitCount("310211", AccessNetworkConstants.EutranBand.BAND_66));
+        assertEquals(0, history.getHitCount("310211", AccessNetworkConstants.EutranBand.BAND_2));
+        assertTrue(Arrays.equals(new int[] {AccessNetworkConstants.EutranBand.BAND_48,
+                AccessNetworkConstants.EutranBand.BAND_66},
+                history.getKnownBands(mPlan.getMccMncs(), mPlan)));
+        assertTrue(Arrays.equals(new int[] {AccessNetworkConstants.EutranBand.BAND_48},
+                history.getKnownBands(Arrays.asList("310210"), mPlan)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPlmnForgotten() {
+        ONSBandHistory history = new ONSBandHistory(2);
+        history.recordHit("310210", AccessNetworkConstants.EutranBand.BAND_2);
+        history.recordHit("310211", AccessNetworkConstants.EutranBand.BAND_2);
+        history.recordHit("310210", AccessNetworkConstants.EutranBand.BAND_66);
+        history.recordHit("310260", AccessNetworkConstants.EutranBand.BAND_2);
+
+        assertEquals(1, history.getHitCount("310210", AccessNetworkConstants.EutranBand.BAND_2));
+        assertEquals(0, history.getHitCount("310211", AccessNetworkConstants.EutranBand.BAND_2));
+        assertEquals(1, history.getHitCount("310260", AccessNetworkConstants.EutranBand.BAND_2));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AvailableNetworkInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ONSConfigInputTest extends ONSBaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+    }
+
+    @Test
+    public void testPersistentStringRoundTrip() {
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<>();
+        availableNetworkInfos.add(new AvailableNetworkInfo(5, 1,
+                new ArrayList<>(Arrays.asList("310210", "310211")),
+                new ArrayList<>(Arrays.asList(2, 48))));
+        availableNetworkInfos.add(new AvailableNetworkInfo(6, 2,
+                new ArrayList<String>(), new ArrayList<Integer>()));
+        ONSConfigInput onsConfigInput = new ONSConfigInput(availableNetworkInfos, null);
+        onsConfigInput.setPrimarySub(1);
+        onsConfigInput.setPreferredDataSub(5);
+
+        ONSConfigInput restored =
+                ONSConfigInput.fromPersistentString(onsConfigInput.toPersistentString());
+        assertNotNull(restored);
+        assertEquals(availableNetworkInfos, restored.getAvailableNetworkInfos());
+        assertEquals(1, restored.getPrimarySub());
+        assertEquals(5, restored.getPreferredDataSub());
+        assertNull(restored.getAvailableNetworkCallback());
+    }
+
+    @Test
+    public void testMalformedPersistentString() {
+        assertNull(ONSConfigInput.fromPersistentString(null));
+        assertNull(ONSConfigInput.fromPersistentString(""));
+        assertNull(ONSConfigInput.fromPersistentString("0;1;1;5,1,310210,"));
+        assertNull(ONSConfigInput.fromPersistentString("1;1;1;5,1,310210"));
+        assertNull(ONSConfigInput.fromPersistentString("1;x;1;5,1,310210,"));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ONSCoverageDatabaseTest extends ONSBaseTest {
+    private static final String CELL = "L310260:1:1";
+    private static final List<String> MCC_MNCS = Arrays.asList("310210");
+
+    private File mFile;
+    private final List<Runnable> mBackgroundTasks = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        mFile = File.createTempFile("ons_coverage", ".db");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private ONSCoverageDatabase open(int maxRecords) {
+        return ONSCoverageDatabase.open(mFile, maxRecords, mBackgroundTasks::add);
+    }
+
+    /* record three misses from CELL, enough to learn it has no coverage */
+    private static void recordNoCoverage(ONSCoverageMap coverageMap, String cellKey, long now) {
+        for (int i = 0; i < 3; i++) {
+            coverageMap.recordOutcome(cellKey, "310210", false, now);
+        }
+    }
+
+    @Test
+    public void testOutcomesSurviveReopen() {
+        ONSCoverageDatabase database = open(ONSCoverageDatabase.DEFAULT_MAX_RECORDS);
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        database.load(coverageMap);
+        coverageMap.setListener(database);
+        recordNoCoverage(coverageMap, CELL, 0);
+        coverageMap.recordOutcome(CELL, "310410", true, 0);
+        // Updates of a known cell and PLMN overwrite their record.
+        assertEquals(2, database.getRecordCount());
+        database.close();
+
+        ONSCoverageDatabase reopened = open(ONSCoverageDatabase.DEFAULT_MAX_RECORDS);
+        ONSCoverageMap restored = new ONSCoverageMap();
+        reopened.load(restored);
+        assertEquals(1, restored.size());
+        assertTrue(restored.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+        assertFalse(restored.isKnownNoCoverage(CELL, Arrays.asList("310410"), 0));
+        reopened.close();
+    }
+
+    @Test
+    public void testUpdatesBeforeLoadNotPersisted() {
+        ONSCoverageDatabase database = open(ONSCoverageDatabase.DEFAULT_MAX_RECORDS);
+        database.onOutcomeUpdated(1, "310210", 0, 1, 0);
+        assertEquals(0, database.getRecordCount());
+        database.close();
+    }
+
+    @Test
+    public void testCorruptFileReset() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.writeInt(0x12345678);
+            file.writeInt(42);
+            file.writeInt(7);
+        }
+        ONSCoverageDatabase database = open(ONSCoverageDatabase.DEFAULT_MAX_RECORDS);
+        assertNotNull(database);
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        database.load(coverageMap);
+        assertEquals(0, database.getRecordCount());
+        assertEquals(0, coverageMap.size());
+        database.close();
+    }
+
+    @Test
+    public void testCompactionDropsDecayedRecords() {
+        ONSCoverageDatabase database = open(8);
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        database.load(coverageMap);
+        coverageMap.setListener(database);
+        long old = 0;
+        long now = TimeUnit.DAYS.toMillis(70);
+        recordNoCoverage(coverageMap, "old0", old);
+        recordNoCoverage(coverageMap, "old1", old);
+        recordNoCoverage(coverageMap, "old2", old);
+        recordNoCoverage(coverageMap, "new0", now);
+        recordNoCoverage(coverageMap, "new1", now);
+        recordNoCoverage(coverageMap, "new2", now);
+        // Filling three quarters of the file schedules a compaction in background.
+        assertEquals(1, mBackgroundTasks.size());
+        assertEquals(6, database.getRecordCount());
+
+        database.compact(now);
+        assertEquals(1, database.getCompactionCount());
+        assertEquals(3, database.getRecordCount());
+        // Records appended after compaction update the compacted file in place.
+        coverageMap.recordOutcome("new0", "310210", false, now);
+        assertEquals(3, database.getRecordCount());
+        database.close();
+
+        ONSCoverageDatabase reopened = open(8);
+        ONSCoverageMap restored = new ONSCoverageMap();
+        reopened.load(restored);
+        assertEquals(3, restored.size());
+        assertTrue(restored.isKnownNoCoverage("new0", MCC_MNCS, now));
+        assertFalse(restored.isKnownNoCoverage("old0", MCC_MNCS, now));
+        reopened.close();
+    }
+
+    @Test
+    public void testScheduledCompactionUsesSchedulerTime() {
+        ONSCoverageDatabase database = open(8);
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        database.setScheduler(scheduler);
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        database.load(coverageMap);
+        coverageMap.setListener(database);
+        for (int i = 0; i < 3; i++) {
+            recordNoCoverage(coverageMap, "old" + i, 0);
+        }
+        scheduler.advanceBy(TimeUnit.DAYS.toMillis(70));
+        for (int i = 0; i < 3; i++) {
+            recordNoCoverage(coverageMap, "new" + i, scheduler.currentTimeMillis());
+        }
+
+        // The compaction scheduled in background runs at the virtual time it is run at.
+        assertEquals(1, mBackgroundTasks.size());
+        mBackgroundTasks.get(0).run();
+        assertEquals(1, database.getCompactionCount());
+        assertEquals(3, database.getRecordCount());
+        database.close();
+    }
+
+    @Test
+    public void testPlmnEncoding() {
+        assertEquals("31021", ONSCoverageDatabase.decodePlmn(
+                ONSCoverageDatabase.encodePlmn("31021")));
+        assertEquals("310021", ONSCoverageDatabase.decodePlmn(
+                ONSCoverageDatabase.encodePlmn("310021")));
+        assertEquals("00101", ONSCoverageDatabase.decodePlmn(
+                ONSCoverageDatabase.encodePlmn("00101")));
+        assertEquals(-1, ONSCoverageDatabase.encodePlmn("3102"));
+        assertEquals(-1, ONSCoverageDatabase.encodePlmn("31a210"));
+        assertNull(ONSCoverageDatabase.decodePlmn(-1));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ONSCoverageMapTest extends ONSBaseTest {
+    private static final String CELL = "L310260:1:1";
+    private static final List<String> MCC_MNCS = Arrays.asList("310210");
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+    }
+
+    @Test
+    public void testNoCoverageLearnedFromMisses() {
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+
+        coverageMap.recordOutcome(CELL, "310210", false, 0);
+        coverageMap.recordOutcome(CELL, "310210", false, 0);
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+        coverageMap.recordOutcome(CELL, "310210", false, 0);
+        assertTrue(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+
+        // Any requested PLMN with unknown or seen coverage requires a scan.
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, Arrays.asList("310210", "310211"), 0));
+        assertFalse(coverageMap.isKnownNoCoverage("L310260:1:2", MCC_MNCS, 0));
+    }
+
+    @Test
+    public void testNoCoverageLearnedFromSpreadMisses() {
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            coverageMap.recordOutcome(CELL, "310210", false, now);
+            now += TimeUnit.MINUTES.toMillis(1);
+        }
+        // The misses decayed a little since they were recorded, they still count as three.
+        assertTrue(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, now));
+
+        // Three misses a day apart count as well, two recent ones do not.
+        coverageMap.clear();
+        for (int i = 0; i < 3; i++) {
+            now += TimeUnit.DAYS.toMillis(1);
+            coverageMap.recordOutcome(CELL, "310210", false, now);
+        }
+        assertTrue(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, now));
+        coverageMap.clear();
+        coverageMap.recordOutcome(CELL, "310210", false, now);
+        coverageMap.recordOutcome(CELL, "310210", false, now + 1);
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, now + 2));
+    }
+
+    @Test
+    public void testHitKeepsScanning() {
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        coverageMap.recordOutcome(CELL, "310210", true, 0);
+        for (int i = 0; i < 5; i++) {
+            coverageMap.recordOutcome(CELL, "310210", false, 0);
+        }
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+    }
+
+    @Test
+    public void testOutcomesDecay() {
+        ONSCoverageMap coverageMap = new ONSCoverageMap();
+        for (int i = 0; i < 4; i++) {
+            coverageMap.recordOutcome(CELL, "310210", false, 0);
+        }
+        assertTrue(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, 0));
+        // After two half lives the misses weigh less than the minimum observations.
+        assertFalse(coverageMap.isKnownNoCoverage(CELL, MCC_MNCS, TimeUnit.DAYS.toMillis(14)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCellEvicted() {
+        ONSCoverageMap coverageMap = new ONSCoverageMap(2);
+        coverageMap.recordOutcome("A", "310210", false, 0);
+        coverageMap.recordOutcome("B", "310210", false, 0);
+        coverageMap.isKnownNoCoverage("A", MCC_MNCS, 0);
+        coverageMap.recordOutcome("C", "310210", false, 0);
+
+        assertEquals(2, coverageMap.size());
+        for (int i = 0; i < 2; i++) {
+            coverageMap.recordOutcome("A", "310210", false, 0);
+            coverageMap.recordOutcome("B", "310210", false, 0);
+        }
+        assertTrue(coverageMap.isKnownNoCoverage("A", MCC_MNCS, 0));
+        // B was evicted, so it starts over with two misses only.
+        assertFalse(coverageMap.isKnownNoCoverage("B", MCC_MNCS, 0));
+    }
+
+    @Test
+    public void testServingCellKey() {
+        CellInfoLte neighbor = new CellInfoLte();
+        neighbor.setCellIdentity(new CellIdentityLte(310, 210, 7, 1, 3));
+        CellInfoLte serving = new CellInfoLte();
+        serving.setCellIdentity(new CellIdentityLte(310, 260, 5, 1, 9));
+        serving.setRegistered(true);
+        List<CellInfo> cellInfos = new ArrayList<>(Arrays.asList(neighbor, serving));
+
+        assertEquals("L310260:9:5", ONSCoverageMap.getServingCellKey(cellInfos));
+        assertNull(ONSCoverageMap.getServingCellKey(null));
+    }
+}
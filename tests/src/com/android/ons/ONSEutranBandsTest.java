@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ONSEutranBandsTest extends ONSBaseTest {
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+    }
+
+    @Test
+    public void testGetBand() {
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_1, ONSEutranBands.getBand(0));
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_2, ONSEutranBands.getBand(600));
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_4, ONSEutranBands.getBand(2000));
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_48, ONSEutranBands.getBand(55240));
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_48, ONSEutranBands.getBand(56739));
+        assertEquals(AccessNetworkConstants.EutranBand.BAND_71, ONSEutranBands.getBand(68935));
+    }
+
+    @Test
+    public void testUnknownEarfcn() {
+        // Gap between band 11 and band 12.
+        assertEquals(-1, ONSEutranBands.getBand(5000));
+        assertEquals(-1, ONSEutranBands.getBand(-1));
+        assertEquals(-1, ONSEutranBands.getBand(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static org.mockito.Mockito.*;
+
+import android.os.HandlerThread;
+import android.telephony.PhoneStateListener;
+import android.telephony.SubscriptionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ONSExitMonitorTest extends ONSBaseTest {
+    private static final int SUB_ID = 5;
+    private static final int EXIT_RSRP = -120;
+    private static final long TIME_TO_TRIGGER_MS = 2000;
+
+    private HandlerThread mThread;
+    private VirtualTimeScheduler mScheduler;
+    private ONSExitMonitor mExitMonitor;
+    private final List<Integer> mExits = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        doReturn(mMockTelephonyManager).when(mMockTelephonyManager)
+                .createForSubscriptionId(anyInt());
+        mThread = new HandlerThread("ONSExitMonitorTest");
+        mThread.start();
+        mScheduler = new VirtualTimeScheduler();
+        mExitMonitor = new ONSExitMonitor(mContext, mThread.getLooper(), mMockTelephonyManager,
+                subId -> mExits.add(subId));
+        mExitMonitor.setScheduler(mScheduler);
+        mExitMonitor.start(SUB_ID);
+        // Use fixed thresholds independent of the device carrier config.
+        mExitMonitor.setThresholds(EXIT_RSRP, TIME_TO_TRIGGER_MS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testExitAfterTimeToTrigger() {
+        verify(mMockTelephonyManager).listen(any(PhoneStateListener.class),
+                eq(PhoneStateListener.LISTEN_SIGNAL_STRENGTHS));
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP - 5);
+        mScheduler.advanceBy(TIME_TO_TRIGGER_MS - 1);
+        assertTrue(mExits.isEmpty());
+        mScheduler.advanceBy(1);
+        assertEquals(1, mExits.size());
+        assertEquals(SUB_ID, (int) mExits.get(0));
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                mExitMonitor.getMonitoredSubId());
+        verify(mMockTelephonyManager).listen(any(PhoneStateListener.class),
+                eq(PhoneStateListener.LISTEN_NONE));
+    }
+
+    @Test
+    public void testHysteresis() {
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP - 5);
+        // Recovering just above the threshold keeps the exit pending.
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP + ONSExitMonitor.HYSTERESIS_DB - 1);
+        mScheduler.advanceBy(TIME_TO_TRIGGER_MS);
+        assertEquals(1, mExits.size());
+    }
+
+    @Test
+    public void testRecoveryCancelsExit() {
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP - 5);
+        mScheduler.advanceBy(TIME_TO_TRIGGER_MS / 2);
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP + ONSExitMonitor.HYSTERESIS_DB);
+        mScheduler.advanceBy(TIME_TO_TRIGGER_MS);
+        assertTrue(mExits.isEmpty());
+        assertEquals(SUB_ID, mExitMonitor.getMonitoredSubId());
+    }
+
+    @Test
+    public void testStopCancelsExit() {
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP - 5);
+        mExitMonitor.stop();
+        mScheduler.advanceBy(TIME_TO_TRIGGER_MS);
+        assertTrue(mExits.isEmpty());
+        // Measurements of a subscription no longer monitored are ignored.
+        mExitMonitor.onRsrpChanged(SUB_ID, EXIT_RSRP - 5);
+        assertEquals(0, mScheduler.getPendingMessageCount());
+    }
+}
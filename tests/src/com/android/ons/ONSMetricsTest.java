@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class ONSMetricsTest extends ONSBaseTest {
+    private ONSMetrics mMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        mMetrics = ONSMetrics.getInstance();
+        mMetrics.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mMetrics.reset();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCounters() {
+        mMetrics.incrementCounter(ONSMetrics.COUNTER_SCAN_STARTED);
+        mMetrics.incrementCounter(ONSMetrics.COUNTER_SCAN_STARTED);
+        mMetrics.incrementCounter(ONSMetrics.COUNTER_SWITCH_REQUESTED);
+        assertEquals(2, mMetrics.getCounter(ONSMetrics.COUNTER_SCAN_STARTED));
+        assertEquals(1, mMetrics.getCounter(ONSMetrics.COUNTER_SWITCH_REQUESTED));
+        assertEquals(0, mMetrics.getCounter(ONSMetrics.COUNTER_SCAN_ERROR));
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        long[] bounds = ONSMetrics.getLatencyBucketBounds();
+        mMetrics.recordLatency(ONSMetrics.LATENCY_SWITCH, 0);
+        mMetrics.recordLatency(ONSMetrics.LATENCY_SWITCH, bounds[0]);
+        mMetrics.recordLatency(ONSMetrics.LATENCY_SWITCH, bounds[0] + 1);
+        mMetrics.recordLatency(ONSMetrics.LATENCY_SWITCH, bounds[bounds.length - 1] + 1);
+
+        long[] buckets = mMetrics.getLatencyBuckets(ONSMetrics.LATENCY_SWITCH);
+        assertEquals(bounds.length + 1, buckets.length);
+        assertEquals(2, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[buckets.length - 1]);
+        assertEquals(4, mMetrics.getLatencyCount(ONSMetrics.LATENCY_SWITCH));
+        assertEquals(bounds[bounds.length - 1] + 1,
+                mMetrics.getLatencyMax(ONSMetrics.LATENCY_SWITCH));
+        assertEquals(0, mMetrics.getLatencyCount(ONSMetrics.LATENCY_ENABLE_MODEM));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    mMetrics.incrementCounter(ONSMetrics.COUNTER_BINDER_CALL);
+                    mMetrics.recordLatency(ONSMetrics.LATENCY_BINDER_CALL, j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, mMetrics.getCounter(ONSMetrics.COUNTER_BINDER_CALL));
+        assertEquals(4000, mMetrics.getLatencyCount(ONSMetrics.LATENCY_BINDER_CALL));
+        assertEquals(999, mMetrics.getLatencyMax(ONSMetrics.LATENCY_BINDER_CALL));
+    }
+
+    @Test
+    public void testDump() {
+        mMetrics.incrementCounter(ONSMetrics.COUNTER_SCAN_STARTED);
+        mMetrics.recordLatency(ONSMetrics.LATENCY_SCAN_FIRST_RESULT, 20);
+        StringWriter stringWriter = new StringWriter();
+        mMetrics.dump(null, new PrintWriter(stringWriter), null);
+        String dump = stringWriter.toString();
+        assertTrue(dump.contains("scan_started=1"));
+        assertTrue(dump.contains("scan_start_to_first_result: count=1"));
+    }
+}
@@ -20,23 +20,29 @@ import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.*;
 
 import android.os.Looper;
+import android.telephony.AccessNetworkConstants;
 import android.telephony.AvailableNetworkInfo;
 import android.telephony.CellIdentityLte;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrengthLte;
 import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
 import android.telephony.SubscriptionInfo;
 import android.telephony.TelephonyManager;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.sql.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ONSNetworkScanCtlrTest extends ONSBaseTest {
     private ONSNetworkScanCtlr mONSNetworkScanCtlr;
@@ -269,4 +275,422 @@ public class ONSNetworkScanCtlrTest extends ONSBaseTest {
         waitUntilReady(100);
         assertFalse(mCallbackInvoked);
     }
+
+    @Test
+    public void testScanRestartsAfterRestartTime() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+
+        try {
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+
+            // Scan completes, modem stays idle for one minute before the next scan.
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            scheduler.advanceBy(TimeUnit.SECONDS.toMillis(59));
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+            scheduler.advanceBy(TimeUnit.SECONDS.toMillis(1));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+
+            // No restart is pending once the scan has been stopped.
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            mONSNetworkScanCtlr.stopNetworkScan();
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(10));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+            assertEquals(0, scheduler.getPendingMessageCount());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testScanDeferredWhenBudgetExhausted() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+        // Budget for a single one minute scan per hour.
+        mONSNetworkScanCtlr.mScanBudgetGovernor = new ONSScanBudgetGovernor(60, 0,
+                scheduler.elapsedRealtime());
+
+        try {
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos,
+                    ONSScanBudgetGovernor.PRIORITY_CARRIER);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+
+            // The restart after the scan completes waits until the budget has refilled.
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(30));
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+            assertEquals(1, mONSNetworkScanCtlr.mScanBudgetGovernor.getDeferredCount());
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(31));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testScanSkippedWhereNoCoverageWasLearned() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        CellInfoLte servingCell = new CellInfoLte();
+        servingCell.setCellIdentity(new CellIdentityLte(310, 260, 5, 1, 9));
+        servingCell.setRegistered(true);
+        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+        cellInfos.add(servingCell);
+        doReturn(cellInfos).when(mMockTelephonyManager).getAllCellInfo();
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+
+        try {
+            // Three full scans from the same cell find nothing.
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            for (int i = 1; i <= 3; i++) {
+                verify(mMockTelephonyManager, times(i)).requestNetworkScan(anyObject(),
+                        anyObject());
+                mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+                scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1));
+            }
+
+            // Further scans are skipped while the device stays on that cell.
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(10));
+            verify(mMockTelephonyManager, times(3)).requestNetworkScan(anyObject(), anyObject());
+            assertTrue(mONSNetworkScanCtlr.mCoverageMap.isKnownNoCoverage("L310260:9:5",
+                    mccMncs, scheduler.elapsedRealtime()));
+
+            // Moving to another cell scans again.
+            servingCell.setCellIdentity(new CellIdentityLte(310, 260, 6, 1, 9));
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1));
+            verify(mMockTelephonyManager, times(4)).requestNetworkScan(anyObject(), anyObject());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    private static CellInfoLte createNeighbourCell(int earfcn, int rsrp) {
+        CellInfoLte cellInfoLte = new CellInfoLte();
+        cellInfoLte.setCellIdentity(new CellIdentityLte(1, 1, 1, earfcn, Integer.MAX_VALUE,
+                "310", "210", null, null));
+        cellInfoLte.setCellSignalStrength(new CellSignalStrengthLte(Integer.MAX_VALUE, rsrp,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        cellInfoLte.setRegistered(false);
+        return cellInfoLte;
+    }
+
+    @Test
+    public void testPassiveNeighbourSkipsActiveScan() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        ArrayList<Integer> bands = new ArrayList<>();
+        bands.add(AccessNetworkConstants.EutranBand.BAND_66);
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                bands);
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        CellInfoLte servingCell = new CellInfoLte();
+        servingCell.setCellIdentity(new CellIdentityLte(310, 260, 5, 1, 9));
+        servingCell.setRegistered(true);
+        // Band 66 neighbour below the entry threshold and a strong band 4 neighbour.
+        CellInfoLte weakNeighbour = createNeighbourCell(66500, -140);
+        CellInfoLte otherBandNeighbour = createNeighbourCell(2000, -80);
+        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+        cellInfos.add(servingCell);
+        cellInfos.add(weakNeighbour);
+        cellInfos.add(otherBandNeighbour);
+        doReturn(cellInfos).when(mMockTelephonyManager).getAllCellInfo();
+        List<List<CellInfo>> results = new ArrayList<>();
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> cells) {
+                        results.add(cells);
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+
+        try {
+            // Neither neighbour is usable, the active scan runs.
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+
+            // A strong band 66 neighbour is reported without scanning.
+            CellInfoLte neighbour = createNeighbourCell(66500, -90);
+            cellInfos.add(neighbour);
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1));
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+            assertEquals(1, results.size());
+            assertEquals(1, results.get(0).size());
+            assertEquals(neighbour, results.get(0).get(0));
+            assertFalse(mONSNetworkScanCtlr.mIsScanActive);
+
+            // Once the neighbour is gone, the active scan resumes.
+            cellInfos.remove(neighbour);
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testStoppedScanResultsNotDelivered() {
+        ArrayList<AvailableNetworkInfo> firstRequest = new ArrayList<AvailableNetworkInfo>();
+        firstRequest.add(new AvailableNetworkInfo(1, 1, new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<Integer>()));
+        ArrayList<AvailableNetworkInfo> secondRequest = new ArrayList<AvailableNetworkInfo>();
+        secondRequest.add(new AvailableNetworkInfo(2, 1, new ArrayList<>(Arrays.asList("310410")),
+                new ArrayList<Integer>()));
+        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+        cellInfos.add(createNeighbourCell(66500, -90));
+        doReturn(cellInfos).when(mMockTelephonyManager).getAllCellInfo();
+        List<List<CellInfo>> results = new ArrayList<>();
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> cells) {
+                        results.add(cells);
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+
+        try {
+            // The first request is answered passively, but replaced before the answer is sent.
+            mONSNetworkScanCtlr.startFastNetworkScan(firstRequest);
+            mONSNetworkScanCtlr.startFastNetworkScan(secondRequest);
+            scheduler.advanceBy(0);
+            assertEquals(0, results.size());
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testScansKnownBandsFirst() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        ArrayList<Integer> bands = new ArrayList<>();
+        bands.add(AccessNetworkConstants.EutranBand.BAND_2);
+        bands.add(AccessNetworkConstants.EutranBand.BAND_66);
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                bands);
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+        mONSNetworkScanCtlr.mBandHistory.recordHit("310210",
+                AccessNetworkConstants.EutranBand.BAND_66);
+        ArgumentCaptor<NetworkScanRequest> captor =
+                ArgumentCaptor.forClass(NetworkScanRequest.class);
+
+        try {
+            // The first scan only sweeps the band the PLMN was found on before.
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(captor.capture(),
+                    anyObject());
+            assertArrayEquals(new int[] {AccessNetworkConstants.EutranBand.BAND_66},
+                    captor.getValue().getSpecifiers()[0].getBands());
+            assertTrue(mONSNetworkScanCtlr.mIsKnownBandsScan);
+
+            // It finds nothing, the next scan sweeps every band.
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(captor.capture(),
+                    anyObject());
+            assertArrayEquals(new int[] {AccessNetworkConstants.EutranBand.BAND_2,
+                    AccessNetworkConstants.EutranBand.BAND_48,
+                    AccessNetworkConstants.EutranBand.BAND_66},
+                    captor.getValue().getSpecifiers()[0].getBands());
+            assertFalse(mONSNetworkScanCtlr.mIsKnownBandsScan);
+
+            // Cells found by the full scan are counted per band.
+            List<CellInfo> results = new ArrayList<CellInfo>();
+            results.add(createNeighbourCell(1000, -80));
+            mONSNetworkScanCtlr.analyzeScanResults(results);
+            assertEquals(1, mONSNetworkScanCtlr.mBandHistory.getHitCount("310210",
+                    AccessNetworkConstants.EutranBand.BAND_2));
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testIncrementalResultsCommitEarly() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        List<List<CellInfo>> results = new ArrayList<>();
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> cells) {
+                        results.add(cells);
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+        mONSNetworkScanCtlr.mIsIncrementalResultsEnabled = true;
+        ArgumentCaptor<NetworkScanRequest> captor =
+                ArgumentCaptor.forClass(NetworkScanRequest.class);
+
+        try {
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(captor.capture(),
+                    anyObject());
+            assertTrue(captor.getValue().getIncrementalResults());
+
+            // A cell above the exit threshold only is held back.
+            CellInfoLte usableCell = createNeighbourCell(1000, -115);
+            List<CellInfo> partialResults = new ArrayList<CellInfo>();
+            partialResults.add(usableCell);
+            mONSNetworkScanCtlr.analyzeScanResults(partialResults);
+            assertEquals(0, results.size());
+
+            // A cell above the entry threshold reports everything found so far.
+            CellInfoLte strongCell = createNeighbourCell(66500, -100);
+            partialResults = new ArrayList<CellInfo>();
+            partialResults.add(strongCell);
+            mONSNetworkScanCtlr.analyzeScanResults(partialResults);
+            assertEquals(1, results.size());
+            assertEquals(2, results.get(0).size());
+            assertTrue(results.get(0).contains(usableCell));
+            assertTrue(results.get(0).contains(strongCell));
+
+            // Cells held back are reported once the search window ends.
+            partialResults = new ArrayList<CellInfo>();
+            partialResults.add(createNeighbourCell(2000, -116));
+            mONSNetworkScanCtlr.analyzeScanResults(partialResults);
+            assertEquals(1, results.size());
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            scheduler.advanceBy(0);
+            assertEquals(2, results.size());
+            assertEquals(1, results.get(1).size());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
+
+    @Test
+    public void testWatchdogRestartsStuckScan() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSNetworkScanCtlr = new ONSNetworkScanCtlr(mContext, mMockTelephonyManager,
+                new ONSNetworkScanCtlr.NetworkAvailableCallBack() {
+                    @Override
+                    public void onNetworkAvailability(List<CellInfo> results) {
+                    }
+
+                    @Override
+                    public void onError(int error) {
+                    }
+                });
+        mONSNetworkScanCtlr.setScheduler(scheduler);
+
+        try {
+            mONSNetworkScanCtlr.startFastNetworkScan(availableNetworkInfos);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+
+            // The modem never reports the end of the one minute scan.
+            scheduler.advanceBy(TimeUnit.MINUTES.toMillis(1)
+                    + ONSNetworkScanCtlr.SCAN_WATCHDOG_GRACE_MS - 1);
+            verify(mMockTelephonyManager, times(1)).requestNetworkScan(anyObject(), anyObject());
+            scheduler.advanceBy(1);
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+            assertEquals(1, mONSNetworkScanCtlr.getWatchdogRecoveryCount());
+            assertTrue(mONSNetworkScanCtlr.mIsScanActive);
+
+            // A scan that completes is left alone.
+            mONSNetworkScanCtlr.mNetworkScanCallback.onComplete();
+            scheduler.advanceBy(TimeUnit.SECONDS.toMillis(59));
+            verify(mMockTelephonyManager, times(2)).requestNetworkScan(anyObject(), anyObject());
+            assertEquals(1, mONSNetworkScanCtlr.getWatchdogRecoveryCount());
+
+            // Stopping the scan cancels its watchdog.
+            scheduler.advanceBy(TimeUnit.SECONDS.toMillis(1));
+            verify(mMockTelephonyManager, times(3)).requestNetworkScan(anyObject(), anyObject());
+            mONSNetworkScanCtlr.stopNetworkScan();
+            assertEquals(0, scheduler.getPendingMessageCount());
+            assertEquals(1, mONSNetworkScanCtlr.getWatchdogRecoveryCount());
+        } finally {
+            mONSNetworkScanCtlr.mThread.quit();
+        }
+    }
 }
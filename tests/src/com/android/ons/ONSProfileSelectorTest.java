@@ -20,7 +20,9 @@ import static org.mockito.Mockito.*;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.IBinder;
 import android.os.Looper;
+import android.os.Message;
 import android.telephony.AvailableNetworkInfo;
 import android.telephony.CellIdentityLte;
 import android.telephony.CellInfo;
@@ -30,6 +32,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import com.android.internal.telephony.ISub;
 import com.android.internal.telephony.IUpdateAvailableNetworksCallback;
 
 import org.junit.After;
@@ -39,7 +42,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 public class ONSProfileSelectorTest extends ONSBaseTest {
 
@@ -74,6 +79,13 @@ public class ONSProfileSelectorTest extends ONSBaseTest {
             super(c, aNSProfileSelectionCallback);
         }
 
+        public boolean mPreferDataAfterSelection;
+
+        @Override
+        protected boolean isPreferDataAfterSelectionEnabled() {
+            return mPreferDataAfterSelection;
+        }
+
         public void triggerProfileUpdate() {
             mHandler.sendEmptyMessage(1);
         }
@@ -82,6 +94,13 @@ public class ONSProfileSelectorTest extends ONSBaseTest {
             updateOpportunisticSubscriptions();
         }
 
+        /* handle a profile selection request on the calling thread */
+        public void startProfileSelectionNow(ArrayList<AvailableNetworkInfo> availableNetworks,
+                IUpdateAvailableNetworksCallback callbackStub) {
+            mHandler.handleMessage(Message.obtain(mHandler, 2, new Object[]{availableNetworks,
+                    callbackStub, ONSScanBudgetGovernor.PRIORITY_SYSTEM}));
+        }
+
         protected void init(Context c,
             MyONSProfileSelector.ONSProfileSelectionCallback aNSProfileSelectionCallback) {
             super.init(c, aNSProfileSelectionCallback);
@@ -237,6 +256,55 @@ public class ONSProfileSelectorTest extends ONSBaseTest {
         assertTrue(mReady);
     }
 
+    @Test
+    public void testStartProfileSelectionPrefersData() throws Exception {
+        List<SubscriptionInfo> subscriptionInfoList = new ArrayList<SubscriptionInfo>();
+        SubscriptionInfo subscriptionInfo = new SubscriptionInfo(5, "", 1, "TMO", "TMO", 1, 1,
+            "123", 1, null, "310", "210", "", false, null, "1");
+        subscriptionInfoList.add(subscriptionInfo);
+
+        List<CellInfo> results2 = new ArrayList<CellInfo>();
+        CellIdentityLte cellIdentityLte = new CellIdentityLte(310, 210, 1, 1, 1);
+        CellInfoLte cellInfoLte = new CellInfoLte();
+        cellInfoLte.setCellIdentity(cellIdentityLte);
+        results2.add((CellInfo) cellInfoLte);
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(5, 1, mccMncs,
+            new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos = new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        ISub iSub = mock(ISub.class);
+
+        IUpdateAvailableNetworksCallback mCallback = new IUpdateAvailableNetworksCallback.Stub() {
+            @Override
+            public void onComplete(int result) {
+                mResult = result;
+            }
+        };
+
+        mResult = -1;
+        doReturn(subscriptionInfoList).when(mSubscriptionManager).getOpportunisticSubscriptions();
+        doReturn(true).when(mSubscriptionManager).isActiveSubId(anyInt());
+        doReturn(true).when(mSubscriptionBoundTelephonyManager).enableModemForSlot(anyInt(),
+                anyBoolean());
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mONSProfileSelector = new MyONSProfileSelector(mContext, mONSProfileSelectionCallback);
+        mONSProfileSelector.setScheduler(scheduler);
+        mONSProfileSelector.mPreferDataAfterSelection = true;
+        mONSProfileSelector.mSubService = new ONSServiceHandle<>("isub",
+                name -> mock(IBinder.class), binder -> iSub, ONSMetrics.LATENCY_SET_PREFERRED_DATA);
+        mONSProfileSelector.updateOppSubs();
+        mONSProfileSelector.startProfileSelectionNow(availableNetworkInfos, mCallback);
+
+        // The selected sub becomes the preferred data sub, with validation, without a
+        // separate request.
+        mONSProfileSelector.mNetworkAvailableCallBackCpy.onNetworkAvailability(results2);
+        scheduler.advanceBy(0);
+        assertEquals(TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS, mResult);
+        verify(iSub).setPreferredDataSubscriptionId(eq(5), eq(true), any());
+    }
+
     @Test
     public void testStartProfileSelectionWithActivePrimarySimOnESim() {
         List<SubscriptionInfo> opportunisticSubscriptionInfoList = new ArrayList<SubscriptionInfo>();
@@ -543,4 +611,85 @@ public class ONSProfileSelectorTest extends ONSBaseTest {
         assertEquals(TelephonyManager.UPDATE_AVAILABLE_NETWORKS_SUCCESS, mResult);
         assertTrue(mReady);
     }
+
+    @Test
+    public void testGetFilteredAvailableNetworksMatchesMerge() {
+        mONSProfileSelector = new MyONSProfileSelector(mContext, mONSProfileSelectionCallback);
+        for (long seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            ArrayList<AvailableNetworkInfo> availableNetworks = new ArrayList<>();
+            int networkCount = random.nextInt(12);
+            for (int i = 0; i < networkCount; i++) {
+                availableNetworks.add(new AvailableNetworkInfo(1 + random.nextInt(8),
+                        1 + random.nextInt(3), new ArrayList<String>(), new ArrayList<Integer>()));
+            }
+            List<SubscriptionInfo> subscriptionInfoList = new ArrayList<>();
+            for (int subId = 1; subId <= 8; subId++) {
+                if (random.nextBoolean()) {
+                    subscriptionInfoList.add(random.nextInt(subscriptionInfoList.size() + 1),
+                            new SubscriptionInfo(subId, "", 1, "TMO", "TMO", 1, 1, "123", 1,
+                                    null, "310", "210", "", false, null, "1"));
+                }
+            }
+            ArrayList<AvailableNetworkInfo> availableNetworksCopy =
+                    new ArrayList<>(availableNetworks);
+            List<SubscriptionInfo> subscriptionInfoListCopy = new ArrayList<>(subscriptionInfoList);
+
+            ArrayList<AvailableNetworkInfo> filtered =
+                    mONSProfileSelector.getFilteredAvailableNetworks(availableNetworks,
+                            subscriptionInfoList);
+            ArrayList<AvailableNetworkInfo> expected =
+                    mergeFilter(availableNetworks, subscriptionInfoList);
+
+            String message = "seed " + seed;
+            assertEquals(message, availableNetworksCopy, availableNetworks);
+            assertEquals(message, subscriptionInfoListCopy, subscriptionInfoList);
+            assertEquals(message, expected.size(), filtered.size());
+            int lastIndex = -1;
+            for (AvailableNetworkInfo availableNetwork : filtered) {
+                assertTrue(message, expected.contains(availableNetwork));
+                /* the requester's order is kept */
+                int index = indexOfInstance(availableNetworks, availableNetwork);
+                assertTrue(message, index > lastIndex);
+                lastIndex = index;
+            }
+        }
+    }
+
+    /* sort-merge filter getFilteredAvailableNetworks used before, on copies of its inputs */
+    private static ArrayList<AvailableNetworkInfo> mergeFilter(
+            List<AvailableNetworkInfo> availableNetworks,
+            List<SubscriptionInfo> subscriptionInfoList) {
+        ArrayList<AvailableNetworkInfo> networks = new ArrayList<>(availableNetworks);
+        ArrayList<SubscriptionInfo> infos = new ArrayList<>(subscriptionInfoList);
+        Collections.sort(networks, (a, b) -> a.getSubId() - b.getSubId());
+        Collections.sort(infos, (a, b) -> a.getSubscriptionId() - b.getSubscriptionId());
+        ArrayList<AvailableNetworkInfo> filtered = new ArrayList<>();
+        int networkIndex = 0;
+        int infoIndex = 0;
+        while (networkIndex < networks.size() && infoIndex < infos.size()) {
+            int subId = infos.get(infoIndex).getSubscriptionId();
+            AvailableNetworkInfo availableNetwork = networks.get(networkIndex);
+            if (subId == availableNetwork.getSubId()) {
+                filtered.add(availableNetwork);
+                infoIndex++;
+                networkIndex++;
+            } else if (subId < availableNetwork.getSubId()) {
+                infoIndex++;
+            } else {
+                networkIndex++;
+            }
+        }
+        return filtered;
+    }
+
+    private static int indexOfInstance(List<AvailableNetworkInfo> list,
+            AvailableNetworkInfo availableNetwork) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == availableNetwork) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
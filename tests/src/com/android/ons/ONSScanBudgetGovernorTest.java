@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ONSScanBudgetGovernorTest extends ONSBaseTest {
+    private static final long SCAN_COST_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+    }
+
+    @Test
+    public void testSystemRequestsLeaveCarrierReserve() {
+        // 4 minutes per hour, 1 minute of it reserved for the carrier.
+        ONSScanBudgetGovernor governor = new ONSScanBudgetGovernor(240, 25, 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                    SCAN_COST_MS, 0));
+        }
+        long delay = governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM, SCAN_COST_MS, 0);
+        // Refilling 1 minute at 4 minutes per hour takes 15 minutes.
+        assertEquals(TimeUnit.MINUTES.toMillis(15), delay);
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_CARRIER,
+                SCAN_COST_MS, 0));
+        assertTrue(governor.requestScan(ONSScanBudgetGovernor.PRIORITY_CARRIER,
+                SCAN_COST_MS, 0) > 0);
+        assertEquals(4, governor.getGrantedCount());
+        assertEquals(2, governor.getDeferredCount());
+    }
+
+    @Test
+    public void testRefillAndRefund() {
+        ONSScanBudgetGovernor governor = new ONSScanBudgetGovernor(120, 0, 0);
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                SCAN_COST_MS, 0));
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                SCAN_COST_MS, 0));
+        assertEquals(0, governor.getAvailableMs(0));
+
+        // Half an hour refills half of the 2 minute budget.
+        long delay = governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM, SCAN_COST_MS,
+                HOUR_MS / 4);
+        assertEquals(HOUR_MS / 4, delay);
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                SCAN_COST_MS, HOUR_MS / 2));
+
+        // A scan stopped after 10 seconds gives back the rest of its minute.
+        governor.refund(TimeUnit.SECONDS.toMillis(50), HOUR_MS / 2);
+        assertEquals(TimeUnit.SECONDS.toMillis(50), governor.getAvailableMs(HOUR_MS / 2));
+
+        // The bucket never holds more than the budget.
+        assertEquals(governor.getCapacityMs(), governor.getAvailableMs(10 * HOUR_MS));
+    }
+
+    @Test
+    public void testRefundCappedToCharge() {
+        // 30 seconds per hour, a 1 minute scan is charged the 30 seconds the bucket holds.
+        ONSScanBudgetGovernor governor = new ONSScanBudgetGovernor(30, 0, 0);
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                SCAN_COST_MS, 0));
+        assertEquals(TimeUnit.SECONDS.toMillis(30), governor.getLastChargedMs());
+        assertEquals(0, governor.getAvailableMs(0));
+
+        // Stopped right away, the scan gives back what it was charged and nothing more.
+        governor.refund(governor.getLastChargedMs(), 0);
+        assertEquals(TimeUnit.SECONDS.toMillis(30), governor.getAvailableMs(0));
+        assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                TimeUnit.SECONDS.toMillis(10), 0));
+        assertEquals(TimeUnit.SECONDS.toMillis(10), governor.getLastChargedMs());
+        assertEquals(TimeUnit.SECONDS.toMillis(20), governor.getAvailableMs(0));
+    }
+
+    @Test
+    public void testDutyCycleIsCapped() {
+        long budgetSeconds = 600;
+        ONSScanBudgetGovernor governor = new ONSScanBudgetGovernor(budgetSeconds, 0, 0);
+        long scanTimeMs = 0;
+        long now = 0;
+        // Request back to back scans for a day, waiting whenever deferred.
+        while (now < TimeUnit.DAYS.toMillis(1)) {
+            long delay = governor.requestScan(ONSScanBudgetGovernor.PRIORITY_CARRIER,
+                    SCAN_COST_MS, now);
+            if (delay == 0) {
+                scanTimeMs += SCAN_COST_MS;
+                now += SCAN_COST_MS;
+            } else {
+                now += delay;
+            }
+        }
+        long maxScanTimeMs = TimeUnit.SECONDS.toMillis(budgetSeconds) * 25;
+        assertTrue(scanTimeMs <= maxScanTimeMs);
+    }
+
+    @Test
+    public void testUnlimitedBudget() {
+        ONSScanBudgetGovernor governor = new ONSScanBudgetGovernor(0, 25, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, governor.requestScan(ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                    SCAN_COST_MS, 0));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ONSScanParamTunerTest extends ONSBaseTest {
+    private static final long CAPACITY_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private ONSScanParamTuner mTuner;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        mTuner = new ONSScanParamTuner();
+    }
+
+    @Test
+    public void testWindowFollowsBandCount() {
+        // Twenty bands get a window of three full sweeps.
+        ONSScanParamTuner.Params params = mTuner.tune(20,
+                ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS, CAPACITY_MS);
+        assertEquals(80, params.searchPeriodicitySec);
+        assertEquals(240, params.maxSearchTimeSec);
+
+        // The window never grows past five minutes.
+        params = mTuner.tune(100, ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS,
+                CAPACITY_MS);
+        assertEquals(300, params.maxSearchTimeSec);
+        assertEquals(300, params.searchPeriodicitySec);
+    }
+
+    @Test
+    public void testSingleBandKeepsBaselinePeriodicity() {
+        // One band sweeps in seconds, but the period does not drop below the untuned minute.
+        ONSScanParamTuner.Params params = mTuner.tune(1,
+                ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS, CAPACITY_MS);
+        assertEquals(60, params.searchPeriodicitySec);
+        assertEquals(60, params.maxSearchTimeSec);
+        assertEquals(TimeUnit.MINUTES.toMillis(1), params.restartDelayMs);
+
+        // A window widened by late hits is split into sweeps of the same length.
+        for (int i = 0; i < 10; i++) {
+            mTuner.recordTimeToFirstHit(TimeUnit.SECONDS.toMillis(120));
+        }
+        params = mTuner.tune(1, ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS, CAPACITY_MS);
+        assertEquals(240, params.maxSearchTimeSec);
+        assertEquals(80, params.searchPeriodicitySec);
+    }
+
+    @Test
+    public void testCarrierRequestsRestartSooner() {
+        ONSScanParamTuner.Params params = mTuner.tune(1,
+                ONSScanBudgetGovernor.PRIORITY_CARRIER, CAPACITY_MS, CAPACITY_MS);
+        assertEquals(TimeUnit.SECONDS.toMillis(30), params.restartDelayMs);
+    }
+
+    @Test
+    public void testBacksOffAsBudgetRunsLow() {
+        ONSScanParamTuner.Params params = mTuner.tune(20,
+                ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS * 2 / 5, CAPACITY_MS);
+        assertEquals(TimeUnit.MINUTES.toMillis(2), params.restartDelayMs);
+        assertEquals(240, params.maxSearchTimeSec);
+
+        // The window is cut to the budget left, but not below a minute.
+        params = mTuner.tune(20, ONSScanBudgetGovernor.PRIORITY_SYSTEM,
+                TimeUnit.SECONDS.toMillis(100), CAPACITY_MS);
+        assertEquals(TimeUnit.MINUTES.toMillis(4), params.restartDelayMs);
+        assertEquals(100, params.maxSearchTimeSec);
+        assertEquals(80, params.searchPeriodicitySec);
+        params = mTuner.tune(20, ONSScanBudgetGovernor.PRIORITY_SYSTEM, 0, CAPACITY_MS);
+        assertEquals(60, params.maxSearchTimeSec);
+
+        // Without a budget limit nothing is cut.
+        params = mTuner.tune(20, ONSScanBudgetGovernor.PRIORITY_SYSTEM, Long.MAX_VALUE, 0);
+        assertEquals(TimeUnit.MINUTES.toMillis(1), params.restartDelayMs);
+        assertEquals(240, params.maxSearchTimeSec);
+    }
+
+    @Test
+    public void testLateHitsWidenWindow() {
+        assertEquals(0, mTuner.getTimeToFirstHitPercentile(90));
+        for (int i = 1; i <= 10; i++) {
+            mTuner.recordTimeToFirstHit(TimeUnit.SECONDS.toMillis(5 * i));
+        }
+        assertEquals(TimeUnit.SECONDS.toMillis(25), mTuner.getTimeToFirstHitPercentile(50));
+        assertEquals(TimeUnit.SECONDS.toMillis(45), mTuner.getTimeToFirstHitPercentile(90));
+
+        // Networks were found up to 45s into a scan, give them twice that.
+        ONSScanParamTuner.Params params = mTuner.tune(1,
+                ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS, CAPACITY_MS);
+        assertEquals(90, params.maxSearchTimeSec);
+
+        // Only recent hits count.
+        for (int i = 0; i < 16; i++) {
+            mTuner.recordTimeToFirstHit(TimeUnit.SECONDS.toMillis(2));
+        }
+        assertEquals(TimeUnit.SECONDS.toMillis(2), mTuner.getTimeToFirstHitPercentile(90));
+        params = mTuner.tune(1, ONSScanBudgetGovernor.PRIORITY_SYSTEM, CAPACITY_MS,
+                CAPACITY_MS);
+        assertEquals(60, params.maxSearchTimeSec);
+    }
+}
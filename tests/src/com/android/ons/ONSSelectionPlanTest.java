@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AvailableNetworkInfo;
+import android.telephony.SubscriptionManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ONSSelectionPlanTest extends ONSBaseTest {
+    private static final int PERIODICITY = 60;
+    private static final int MAX_SEARCH_TIME = 60;
+
+    private ArrayList<AvailableNetworkInfo> mAvailableNetworks;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        mAvailableNetworks = new ArrayList<>();
+        mAvailableNetworks.add(new AvailableNetworkInfo(6, AvailableNetworkInfo.PRIORITY_LOW,
+                new ArrayList<>(Arrays.asList("310210", "310211")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_66))));
+        mAvailableNetworks.add(new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_2))));
+    }
+
+    @Test
+    public void testCompile() {
+        ONSSelectionPlan plan = ONSSelectionPlan.compile(mAvailableNetworks, PERIODICITY,
+                MAX_SEARCH_TIME);
+
+        // Networks are kept in priority order, the input is left alone.
+        assertEquals(5, plan.getAvailableNetworks().get(0).getSubId());
+        assertEquals(6, plan.getAvailableNetworks().get(1).getSubId());
+        assertEquals(6, mAvailableNetworks.get(0).getSubId());
+
+        assertEquals(5, plan.getSubId("310210", AvailableNetworkInfo.PRIORITY_HIGH));
+        assertEquals(6, plan.getSubId("310210", AvailableNetworkInfo.PRIORITY_LOW));
+        assertEquals(6, plan.getSubId("310211", AvailableNetworkInfo.PRIORITY_LOW));
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                plan.getSubId("310211", AvailableNetworkInfo.PRIORITY_HIGH));
+
+        assertTrue(plan.containsSubId(5));
+        assertFalse(plan.containsSubId(7));
+        // Band 48 is always scanned.
+        assertTrue(Arrays.equals(new int[] {AccessNetworkConstants.EutranBand.BAND_2,
+                AccessNetworkConstants.EutranBand.BAND_48,
+                AccessNetworkConstants.EutranBand.BAND_66}, plan.getBands()));
+        assertTrue(plan.containsBand(AccessNetworkConstants.EutranBand.BAND_66));
+        assertFalse(plan.containsBand(AccessNetworkConstants.EutranBand.BAND_4));
+
+        assertEquals(Arrays.asList("310210", "310211", "310210"), plan.getMccMncs());
+        assertEquals(plan.getMccMncs(), plan.getScanRequest().getPlmns());
+        assertEquals(PERIODICITY, plan.getScanRequest().getSearchPeriodicity());
+        assertEquals(MAX_SEARCH_TIME, plan.getScanRequest().getMaxSearchTime());
+    }
+
+    @Test
+    public void testPlanIsImmutable() {
+        ONSSelectionPlan plan = ONSSelectionPlan.compile(mAvailableNetworks, PERIODICITY,
+                MAX_SEARCH_TIME);
+        List<AvailableNetworkInfo> networks = plan.getAvailableNetworks();
+        try {
+            networks.clear();
+            fail("plan networks must not be modifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+        plan.getBands()[0] = AccessNetworkConstants.EutranBand.BAND_71;
+        assertTrue(plan.containsBand(AccessNetworkConstants.EutranBand.BAND_2));
+        mAvailableNetworks.clear();
+        assertEquals(2, plan.getAvailableNetworks().size());
+    }
+
+    @Test
+    public void testWithout() {
+        ONSSelectionPlan plan = ONSSelectionPlan.compile(mAvailableNetworks, PERIODICITY,
+                MAX_SEARCH_TIME);
+        ONSSelectionPlan remaining = plan.without(5);
+        assertEquals(1, remaining.getAvailableNetworks().size());
+        assertEquals(6, remaining.getSubId("310210", AvailableNetworkInfo.PRIORITY_LOW));
+        assertFalse(remaining.containsBand(AccessNetworkConstants.EutranBand.BAND_2));
+        assertEquals(PERIODICITY, remaining.getScanRequest().getSearchPeriodicity());
+        assertNull(remaining.without(6));
+    }
+
+    @Test
+    public void testFingerprint() {
+        long fingerprint = ONSSelectionPlan.fingerprint(mAvailableNetworks);
+
+        ArrayList<AvailableNetworkInfo> reversed = new ArrayList<>();
+        reversed.add(copy(mAvailableNetworks.get(1)));
+        reversed.add(copy(mAvailableNetworks.get(0)));
+        assertEquals(fingerprint, ONSSelectionPlan.fingerprint(reversed));
+
+        reversed.set(0, new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_MED,
+                new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_2))));
+        assertFalse(fingerprint == ONSSelectionPlan.fingerprint(reversed));
+        reversed.set(0, new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310211")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_2))));
+        assertFalse(fingerprint == ONSSelectionPlan.fingerprint(reversed));
+        reversed.set(0, new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_4))));
+        assertFalse(fingerprint == ONSSelectionPlan.fingerprint(reversed));
+        reversed.set(0, new AvailableNetworkInfo(7, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310210")),
+                new ArrayList<>(Arrays.asList(AccessNetworkConstants.EutranBand.BAND_2))));
+        assertFalse(fingerprint == ONSSelectionPlan.fingerprint(reversed));
+
+        /* PLMN boundaries are part of the fingerprint */
+        ArrayList<AvailableNetworkInfo> split = new ArrayList<>();
+        split.add(new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("31021", "0")), new ArrayList<Integer>()));
+        ArrayList<AvailableNetworkInfo> joined = new ArrayList<>();
+        joined.add(new AvailableNetworkInfo(5, AvailableNetworkInfo.PRIORITY_HIGH,
+                new ArrayList<>(Arrays.asList("310210")), new ArrayList<Integer>()));
+        assertFalse(ONSSelectionPlan.fingerprint(split) == ONSSelectionPlan.fingerprint(joined));
+    }
+
+    private static AvailableNetworkInfo copy(AvailableNetworkInfo availableNetwork) {
+        return new AvailableNetworkInfo(availableNetwork.getSubId(),
+                availableNetwork.getPriority(), availableNetwork.getMccMncs(),
+                availableNetwork.getBands());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import static org.mockito.Mockito.*;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.internal.telephony.ISub;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class ONSServiceHandleTest extends ONSBaseTest {
+    @Mock
+    private IBinder mBinder;
+    @Mock
+    private ISub mISub;
+    private IBinder mRegisteredBinder;
+    private int mLookupCount;
+    private ONSServiceHandle<ISub> mServiceHandle;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp("ONSTest");
+        mRegisteredBinder = mBinder;
+        mLookupCount = 0;
+        mServiceHandle = new ONSServiceHandle<>("isub", name -> {
+            mLookupCount++;
+            return mRegisteredBinder;
+        }, binder -> mISub, ONSMetrics.LATENCY_SET_PREFERRED_DATA);
+    }
+
+    @Test
+    public void testServiceCached() throws Exception {
+        assertTrue(mServiceHandle.call(iSub -> iSub.setPreferredDataSubscriptionId(1, false,
+                null)));
+        assertTrue(mServiceHandle.call(iSub -> iSub.setPreferredDataSubscriptionId(2, false,
+                null)));
+        assertEquals(1, mLookupCount);
+        verify(mBinder).linkToDeath(any(IBinder.DeathRecipient.class), eq(0));
+        verify(mISub).setPreferredDataSubscriptionId(2, false, null);
+    }
+
+    @Test
+    public void testCallRecordsLatency() throws Exception {
+        ONSMetrics.getInstance().reset();
+        assertTrue(mServiceHandle.call(iSub -> iSub.setPreferredDataSubscriptionId(1, false,
+                null)));
+        assertEquals(1, ONSMetrics.getInstance().getLatencyCount(
+                ONSMetrics.LATENCY_SET_PREFERRED_DATA));
+    }
+
+    @Test
+    public void testReconnectAfterDeath() {
+        assertNotNull(mServiceHandle.get());
+        mServiceHandle.getDeathRecipient().binderDied();
+        assertNotNull(mServiceHandle.get());
+        assertEquals(2, mLookupCount);
+        assertEquals(2, mServiceHandle.getConnectCount());
+    }
+
+    @Test
+    public void testReconnectAfterRemoteException() throws Exception {
+        doThrow(new RemoteException()).when(mISub).setPreferredDataSubscriptionId(anyInt(),
+                anyBoolean(), any());
+        assertFalse(mServiceHandle.call(iSub -> iSub.setPreferredDataSubscriptionId(1, false,
+                null)));
+        verify(mBinder).unlinkToDeath(any(IBinder.DeathRecipient.class), eq(0));
+        assertNotNull(mServiceHandle.get());
+        assertEquals(2, mLookupCount);
+    }
+
+    @Test
+    public void testServiceUnavailable() throws Exception {
+        mRegisteredBinder = null;
+        assertFalse(mServiceHandle.call(iSub -> iSub.setPreferredDataSubscriptionId(1, false,
+                null)));
+        // A service that is not registered yet is looked up again on the next call.
+        mRegisteredBinder = mBinder;
+        assertNotNull(mServiceHandle.get());
+        assertEquals(2, mLookupCount);
+    }
+
+    @Test
+    public void testDeadServiceNotCached() throws Exception {
+        doThrow(new RemoteException()).when(mBinder).linkToDeath(any(), anyInt());
+        assertNull(mServiceHandle.get());
+        assertEquals(0, mServiceHandle.getConnectCount());
+    }
+}
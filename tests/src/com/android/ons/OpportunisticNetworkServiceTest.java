@@ -20,6 +20,8 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.Intent;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -111,6 +113,32 @@ public class OpportunisticNetworkServiceTest extends ONSBaseTest {
         assertEquals(false, isEnable);
     }
 
+    @Test
+    public void testInitializeDefersProfileSelection() throws Exception {
+        Context context = new ContextWrapper(mContext) {
+            @Override
+            public Object getSystemService(String name) {
+                return Context.TELEPHONY_SUBSCRIPTION_SERVICE.equals(name)
+                        ? mSubscriptionManager : super.getSystemService(name);
+            }
+        };
+        OpportunisticNetworkService[] service = new OpportunisticNetworkService[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                service[0] = new OpportunisticNetworkService();
+                service[0].initialize(context);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // Profile selector creation and subscription loading must not be part of this stage.
+        assertNull(service[0].mProfileSelector);
+        verify(mSubscriptionManager, never()).getOpportunisticSubscriptions();
+    }
+
     @Test
     public void testHandleSimStateChange() {
         mResult = -1;
@@ -152,6 +180,32 @@ public class OpportunisticNetworkServiceTest extends ONSBaseTest {
         verify(mockONSConfigInputHashMap,times(1)).get(SYSTEM_APP_CONFIG_NAME);
     }
 
+    @Test
+    public void testHandleSimStateChangeCoalescesUnchangedSubscriptions() {
+        ArrayList<String> mccMncs = new ArrayList<>();
+        mccMncs.add("310210");
+        AvailableNetworkInfo availableNetworkInfo = new AvailableNetworkInfo(1, 1, mccMncs,
+                new ArrayList<Integer>());
+        ArrayList<AvailableNetworkInfo> availableNetworkInfos =
+                new ArrayList<AvailableNetworkInfo>();
+        availableNetworkInfos.add(availableNetworkInfo);
+        ONSConfigInput onsConfigInput = new ONSConfigInput(availableNetworkInfos, null);
+        onsConfigInput.setPrimarySub(1);
+        ArrayList<SubscriptionInfo> subscriptionInfos = new ArrayList<SubscriptionInfo>();
+
+        doReturn(subscriptionInfos).when(mSubscriptionManager).getActiveSubscriptionInfoList(false);
+        doReturn(onsConfigInput).when(mockONSConfigInputHashMap).get(CARRIER_APP_CONFIG_NAME);
+        doReturn(null).when(mockONSConfigInputHashMap).get(SYSTEM_APP_CONFIG_NAME);
+        mOpportunisticNetworkService.mIsEnabled = true;
+        mOpportunisticNetworkService.mONSConfigInputHashMap = mockONSConfigInputHashMap;
+
+        // A burst of SIM state changes with the same active subscriptions is evaluated once.
+        mOpportunisticNetworkService.handleSimStateChange();
+        mOpportunisticNetworkService.handleSimStateChange();
+        mOpportunisticNetworkService.handleSimStateChange();
+        verify(mockONSConfigInputHashMap, times(1)).get(SYSTEM_APP_CONFIG_NAME);
+    }
+
     @Test
     public void testSystemPreferredDataWhileCarrierAppIsActive() {
         mResult = -1;
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.ons;
+
+import android.os.Handler;
+import android.os.Message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ONSScheduler on virtual time. Delayed messages are held here instead of in the handlers'
+ * queues and are dispatched on the calling thread, in time order, by {@link #advanceBy(long)}.
+ */
+public class VirtualTimeScheduler extends ONSScheduler {
+    private final Object mLock = new Object();
+    /* pending messages, ordered by due time and then by send order */
+    private final List<PendingMessage> mPendingMessages = new ArrayList<>();
+    private long mNow;
+
+    private static class PendingMessage {
+        final long mDueTime;
+        final Message mMessage;
+
+        PendingMessage(long dueTime, Message message) {
+            mDueTime = dueTime;
+            mMessage = message;
+        }
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        synchronized (mLock) {
+            return mNow;
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return elapsedRealtime();
+    }
+
+    @Override
+    public boolean sendMessageDelayed(Message msg, long delayMs) {
+        synchronized (mLock) {
+            long dueTime = mNow + Math.max(0, delayMs);
+            int index = mPendingMessages.size();
+            while (index > 0 && mPendingMessages.get(index - 1).mDueTime > dueTime) {
+                index--;
+            }
+            mPendingMessages.add(index, new PendingMessage(dueTime, msg));
+        }
+        return true;
+    }
+
+    @Override
+    public void removeMessages(Handler handler, int what) {
+        synchronized (mLock) {
+            Iterator<PendingMessage> iterator = mPendingMessages.iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next().mMessage;
+                if (message.getTarget() == handler && message.what == what) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasMessages(Handler handler, int what) {
+        synchronized (mLock) {
+            for (PendingMessage pendingMessage : mPendingMessages) {
+                if (pendingMessage.mMessage.getTarget() == handler
+                        && pendingMessage.mMessage.what == what) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return number of delayed messages not yet dispatched
+     */
+    public int getPendingMessageCount() {
+        synchronized (mLock) {
+            return mPendingMessages.size();
+        }
+    }
+
+    /**
+     * move time forward by durationMs, dispatching every message that becomes due on the way,
+     * including messages sent by the dispatched ones.
+     */
+    public void advanceBy(long durationMs) {
+        long target;
+        synchronized (mLock) {
+            target = mNow + durationMs;
+        }
+        while (true) {
+            PendingMessage next;
+            synchronized (mLock) {
+                if (mPendingMessages.isEmpty() || mPendingMessages.get(0).mDueTime > target) {
+                    mNow = target;
+                    return;
+                }
+                next = mPendingMessages.remove(0);
+                mNow = next.mDueTime;
+            }
+            next.mMessage.getTarget().dispatchMessage(next.mMessage);
+        }
+    }
+}